@@ -0,0 +1,537 @@
+package fr.ensibs.peerExpress;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.naming.NamingException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A pool of the JMS sessions used to send messages to the other users. The connections
+ * to the JORAM servers are shared by the sessions to the same host and port, and closed
+ * with their last session. The sessions are kept in least recently used order: beyond a
+ * maximum number of sessions the least recently used one is closed, and the sessions
+ * idle for too long are closed by {@link #evictIdle()}, so that a user chatting with many
+ * peers holds a bounded number of connections.
+ */
+public class ConnectionPool {
+
+    /**
+     * the opener of the connections and the destinations of the JORAM servers
+     */
+    private final Opener opener;
+
+    /**
+     * the maximum number of sessions kept open
+     */
+    private final int maxSessions;
+
+    /**
+     * the time in milliseconds after which an unused session is closed
+     */
+    private final long idleTimeout;
+
+    /**
+     * the connections to the JORAM servers identified by their host and port
+     */
+    private final Map<String, SharedConnection> connections = new HashMap<>();
+
+    /**
+     * the sessions identified by the username of their recipient, least recently used first
+     */
+    private final LinkedHashMap<String, PooledSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * the sessions being opened, identified by the username of their recipient
+     */
+    private final Map<String, CompletableFuture<PooledSession>> opening = new HashMap<>();
+
+    /**
+     * true once the pool has been closed
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * @param opener the opener of the connections and the destinations of the JORAM servers
+     * @param maxSessions the maximum number of sessions kept open
+     * @param idleTimeout the time in milliseconds after which an unused session is closed
+     */
+    public ConnectionPool(Opener opener, int maxSessions, long idleTimeout) {
+        this.opener = opener;
+        this.maxSessions = maxSessions;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Send a message to a user with its session, which is opened if needed. The messages
+     * sent to the same user are sent one at a time, since a session is not thread-safe.
+     * @param username the username of the recipient
+     * @param host the host of the JORAM server of the recipient
+     * @param port the port of the JORAM server of the recipient
+     * @param sender the sender of the message
+     * @throws NamingException if the JORAM server of the recipient cannot be looked up
+     * @throws JMSException if the session cannot be opened or the message cannot be sent
+     */
+    public void send(String username, String host, int port, MessageSender sender)
+            throws NamingException, JMSException {
+        PooledSession session = this.borrow(username, host, port);
+        try {
+            synchronized (session) {
+                sender.send(session.session, session.producer);
+            }
+        } catch (JMSException e) {
+            // the session may be broken, the next message opens a new one
+            this.discard(username, session);
+            throw e;
+        } finally {
+            this.giveBack(session);
+        }
+    }
+
+    /**
+     * Open the session to a user in advance if there is none, so that the first message to
+     * this user does not wait for the connection to its JORAM server. The session is then
+     * kept and evicted like a session that has just been used.
+     * @param username the username of the user
+     * @param host the host of the JORAM server of the user
+     * @param port the port of the JORAM server of the user
+     * @throws NamingException if the JORAM server of the user cannot be looked up
+     * @throws JMSException if the session cannot be opened
+     */
+    public void prewarm(String username, String host, int port) throws NamingException, JMSException {
+        this.giveBack(this.borrow(username, host, port));
+    }
+
+    /**
+     * Close the session to a user, e.g. when the user has deregistered.
+     * @param username the username of the user
+     */
+    public synchronized void release(String username) {
+        PooledSession session = this.sessions.remove(username);
+        if (session != null)
+            this.close(session);
+    }
+
+    /**
+     * Close the sessions to the users that are not in a collection, e.g. when the directory has been read again.
+     * @param usernames the usernames of the users whose sessions are kept
+     */
+    public synchronized void retainAll(Collection<String> usernames) {
+        Iterator<Map.Entry<String, PooledSession>> iterator = this.sessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, PooledSession> entry = iterator.next();
+            if (!usernames.contains(entry.getKey())) {
+                iterator.remove();
+                this.close(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Close the sessions that have not been used for the idle timeout, and the connections left unused.
+     */
+    public synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledSession> iterator = this.sessions.values().iterator();
+        while (iterator.hasNext()) {
+            PooledSession session = iterator.next();
+            if (session.borrowers == 0 && now - session.lastUsed >= this.idleTimeout) {
+                iterator.remove();
+                this.close(session);
+            }
+        }
+    }
+
+    /**
+     * Close all the sessions and connections, the messages being sent are sent before their session is closed.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        for (PooledSession session : this.sessions.values())
+            this.close(session);
+        this.sessions.clear();
+    }
+
+    /**
+     * Get the session to a user, opening it if there is none or if the user has moved to
+     * another JORAM server, and mark it as used until it is given back. A single sender opens
+     * the session to a user, outside the lock of the pool, while the other senders to this
+     * user wait for the same session.
+     * @param username the username of the recipient
+     * @param host the host of the JORAM server of the recipient
+     * @param port the port of the JORAM server of the recipient
+     * @return the session to the user
+     * @throws NamingException if the JORAM server of the recipient cannot be looked up
+     * @throws JMSException if the session cannot be opened
+     */
+    private PooledSession borrow(String username, String host, int port) throws NamingException, JMSException {
+        while (true) {
+            CompletableFuture<PooledSession> future;
+            boolean opener = false;
+            synchronized (this) {
+                this.checkOpen();
+                PooledSession session = this.sessions.get(username);
+                if (session != null && !session.connection.address.equals(host + ":" + port)) {
+                    this.sessions.remove(username);
+                    this.close(session);
+                    session = null;
+                }
+                if (session != null) {
+                    session.borrowers++;
+                    return session;
+                }
+
+                future = this.opening.get(username);
+                if (future == null) {
+                    future = new CompletableFuture<>();
+                    this.opening.put(username, future);
+                    opener = true;
+                }
+            }
+
+            if (opener)
+                return this.openSession(username, host, port, future);
+
+            PooledSession session = await(future);
+            synchronized (this) {
+                // the session may have been evicted as soon as it was opened, or opened for the previous
+                // JORAM server of a user who registered again elsewhere, in which case another one is opened
+                if (!session.closed && !session.discarded && session.connection.address.equals(host + ":" + port)) {
+                    session.borrowers++;
+                    return session;
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the session to a user and add it to the pool, then hand it over to the senders waiting for it.
+     * @param username the username of the recipient
+     * @param host the host of the JORAM server of the recipient
+     * @param port the port of the JORAM server of the recipient
+     * @param future the future of the session, completed once the session is opened or could not be
+     * @return the session to the user, marked as used
+     * @throws NamingException if the JORAM server of the recipient cannot be looked up
+     * @throws JMSException if the session cannot be opened
+     */
+    private PooledSession openSession(String username, String host, int port, CompletableFuture<PooledSession> future)
+            throws NamingException, JMSException {
+        PooledSession session;
+        try {
+            session = this.open(host, port);
+        } catch (NamingException | JMSException | RuntimeException e) {
+            synchronized (this) {
+                this.opening.remove(username);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+
+        synchronized (this) {
+            this.opening.remove(username);
+            session.borrowers++;
+            if (this.closed) {
+                // the session is closed once given back
+                session.discarded = true;
+            } else {
+                this.sessions.put(username, session);
+                this.evictLeastRecentlyUsed();
+            }
+        }
+        future.complete(session);
+        return session;
+    }
+
+    /**
+     * Open a session to a JORAM server, on the connection to this server if there is already one.
+     * @param host the host of the JORAM server
+     * @param port the port of the JORAM server
+     * @return the session, not in the pool yet
+     * @throws NamingException if the JORAM server cannot be looked up
+     * @throws JMSException if the session cannot be opened
+     */
+    private PooledSession open(String host, int port) throws NamingException, JMSException {
+        String address = host + ":" + port;
+        SharedConnection connection;
+        synchronized (this) {
+            connection = this.connections.get(address);
+            if (connection != null)
+                connection.references++;
+        }
+        if (connection == null) {
+            Connection created = this.opener.createConnection(host, port);
+            synchronized (this) {
+                connection = this.connections.get(address);
+                if (connection == null) {
+                    connection = new SharedConnection(address, created);
+                    this.connections.put(address, connection);
+                    created = null;
+                }
+                connection.references++;
+            }
+            // another sender has connected to the same server meanwhile
+            if (created != null)
+                closeQuietly(created);
+        }
+
+        Session session = null;
+        try {
+            session = connection.connection.createSession();
+            MessageProducer producer = session.createProducer(this.opener.getDestination(host, port));
+            connection.connection.start();
+            return new PooledSession(connection, session, producer);
+        } catch (NamingException | JMSException | RuntimeException e) {
+            if (session != null)
+                closeQuietly(session);
+            synchronized (this) {
+                if (--connection.references == 0)
+                    this.closeConnection(connection);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Mark a session as no longer used by a sender, closing it if it has been discarded meanwhile.
+     * @param session the session
+     */
+    private synchronized void giveBack(PooledSession session) {
+        session.borrowers--;
+        session.lastUsed = System.currentTimeMillis();
+        if (session.discarded && session.borrowers == 0)
+            this.close(session);
+    }
+
+    /**
+     * Remove a session from the pool, so that the next message to its user opens a new one.
+     * @param username the username of the recipient
+     * @param session the session
+     */
+    private synchronized void discard(String username, PooledSession session) {
+        if (this.sessions.get(username) == session)
+            this.sessions.remove(username);
+        session.discarded = true;
+    }
+
+    /**
+     * Close the least recently used sessions beyond the maximum number of sessions, unless they are being used.
+     */
+    private void evictLeastRecentlyUsed() {
+        Iterator<PooledSession> iterator = this.sessions.values().iterator();
+        int excess = this.sessions.size() - this.maxSessions;
+        while (excess > 0 && iterator.hasNext()) {
+            PooledSession session = iterator.next();
+            if (session.borrowers == 0) {
+                iterator.remove();
+                this.close(session);
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * Close a session removed from the pool, or mark it to be closed once given back if it is
+     * being used, and close its connection if it was the last session using it.
+     * @param session the session
+     */
+    private void close(PooledSession session) {
+        session.discarded = true;
+        if (session.borrowers > 0 || session.closed)
+            return;
+
+        session.closed = true;
+        closeQuietly(session.session);
+        if (--session.connection.references == 0)
+            this.closeConnection(session.connection);
+    }
+
+    /**
+     * Close a connection that no session uses anymore.
+     * @param connection the connection
+     */
+    private void closeConnection(SharedConnection connection) {
+        this.connections.remove(connection.address);
+        closeQuietly(connection.connection);
+    }
+
+    /**
+     * Throw an exception if the pool has been closed.
+     * @throws JMSException if the pool has been closed
+     */
+    private void checkOpen() throws JMSException {
+        if (this.closed)
+            throw new javax.jms.IllegalStateException("The connection pool is closed");
+    }
+
+    /**
+     * Wait for a session opened by another sender.
+     * @param future the future of the session
+     * @return the session
+     * @throws NamingException if the JORAM server of the recipient could not be looked up
+     * @throws JMSException if the session could not be opened or the thread was interrupted
+     */
+    private static PooledSession await(CompletableFuture<PooledSession> future) throws NamingException, JMSException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while waiting for the session");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NamingException)
+                throw (NamingException) cause;
+            if (cause instanceof JMSException)
+                throw (JMSException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new JMSException(String.valueOf(cause));
+        }
+    }
+
+    /**
+     * Close a JMS session or connection, ignoring the errors since the JORAM server may be gone.
+     * @param closeable the session or connection
+     */
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // nothing more to release
+        }
+    }
+
+    /**
+     * The opener of the connections and the destinations of the JORAM servers.
+     */
+    public interface Opener {
+
+        /**
+         * Create a connection to a JORAM server.
+         * @param host the host of the JORAM server
+         * @param port the port of the JORAM server
+         * @return the connection, not started
+         * @throws NamingException if the connection factory cannot be looked up
+         * @throws JMSException if the connection cannot be created
+         */
+        Connection createConnection(String host, int port) throws NamingException, JMSException;
+
+        /**
+         * Get the destination of the messages on a JORAM server.
+         * @param host the host of the JORAM server
+         * @param port the port of the JORAM server
+         * @return the destination
+         * @throws NamingException if the destination cannot be looked up
+         */
+        Destination getDestination(String host, int port) throws NamingException;
+
+    }
+
+    /**
+     * The sender of a message with a session of the pool.
+     */
+    public interface MessageSender {
+
+        /**
+         * Create and send a message.
+         * @param session the session to the recipient
+         * @param producer the message producer to the recipient
+         * @throws JMSException if the message cannot be created or sent
+         */
+        void send(Session session, MessageProducer producer) throws JMSException;
+
+    }
+
+    /**
+     * A connection to a JORAM server shared by the sessions to the same host and port.
+     */
+    private static class SharedConnection {
+
+        /**
+         * the host and port of the JORAM server
+         */
+        private final String address;
+
+        /**
+         * the connection
+         */
+        private final Connection connection;
+
+        /**
+         * the number of sessions opened on the connection
+         */
+        private int references;
+
+        /**
+         * Constructor.
+         * @param address the host and port of the JORAM server
+         * @param connection the connection
+         */
+        private SharedConnection(String address, Connection connection) {
+            this.address = address;
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * A session to a user with its message producer.
+     */
+    private static class PooledSession {
+
+        /**
+         * the connection on which the session is opened
+         */
+        private final SharedConnection connection;
+
+        /**
+         * the session
+         */
+        private final Session session;
+
+        /**
+         * the message producer to the destination of the user
+         */
+        private final MessageProducer producer;
+
+        /**
+         * the number of senders using the session
+         */
+        private int borrowers;
+
+        /**
+         * the time in milliseconds at which the session was last used
+         */
+        private long lastUsed = System.currentTimeMillis();
+
+        /**
+         * true if the session has been removed from the pool and must be closed once unused
+         */
+        private boolean discarded;
+
+        /**
+         * true once the session has been closed
+         */
+        private boolean closed;
+
+        /**
+         * Constructor.
+         * @param connection the connection on which the session is opened
+         * @param session the session
+         * @param producer the message producer to the destination of the user
+         */
+        private PooledSession(SharedConnection connection, Session session, MessageProducer producer) {
+            this.connection = connection;
+            this.session = session;
+            this.producer = producer;
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package fr.ensibs.peerExpress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The number of messages sent by the user to each other user, kept across restarts in a
+ * properties file, so that the sessions with the most frequent contacts can be opened in
+ * advance. The number of frequent contacts, i.e. the pre-warm budget, is bounded.
+ */
+public class ContactHistory {
+
+    /**
+     * the properties file where the numbers of messages are saved
+     */
+    private final File file;
+
+    /**
+     * the maximum number of frequent contacts
+     */
+    private final int budget;
+
+    /**
+     * the number of messages sent to each user, identified by its username
+     */
+    private final Map<String, Long> counts = new HashMap<>();
+
+    /**
+     * the usernames of the frequent contacts, replaced when one of them changes
+     */
+    private volatile Set<String> frequent = Collections.emptySet();
+
+    /**
+     * true if messages have been sent since the last save
+     */
+    private boolean dirty;
+
+    /**
+     * Constructor, loading the numbers of messages saved by the last run if any.
+     * @param file the properties file where the numbers of messages are saved
+     * @param budget the maximum number of frequent contacts, 0 to disable the pre-warming
+     * @throws IOException if the file exists but cannot be read
+     */
+    public ContactHistory(File file, int budget) throws IOException {
+        this.file = file;
+        this.budget = budget;
+        if (file.isFile()) {
+            Properties properties = new Properties();
+            try (InputStream input = new FileInputStream(file)) {
+                properties.load(input);
+            }
+            for (String username : properties.stringPropertyNames()) {
+                try {
+                    this.counts.put(username, Long.parseLong(properties.getProperty(username)));
+                } catch (NumberFormatException e) {
+                    // a malformed entry is only a lost hint, the others are kept
+                }
+            }
+            this.rank();
+        }
+    }
+
+    /**
+     * Record a message sent to a user. Since the number of messages of a single user grows by one,
+     * the user can only enter the frequent contacts in place of the least frequent of them, so the
+     * other users need not be ranked again.
+     * @param username the username of the recipient
+     */
+    public synchronized void record(String username) {
+        long count = this.counts.merge(username, 1L, Long::sum);
+        this.dirty = true;
+        if (this.budget == 0 || this.frequent.contains(username))
+            return;
+
+        Set<String> frequent = new HashSet<>(this.frequent);
+        if (frequent.size() >= this.budget) {
+            String least = null;
+            for (String contact : frequent) {
+                if (least == null || this.counts.get(contact) < this.counts.get(least))
+                    least = contact;
+            }
+            if (count <= this.counts.get(least))
+                return;
+            frequent.remove(least);
+        }
+        frequent.add(username);
+        this.frequent = Collections.unmodifiableSet(frequent);
+    }
+
+    /**
+     * Tell if a user is one of the frequent contacts.
+     * @param username the username of the user
+     * @return true if and only if the session with the user should be opened in advance
+     */
+    public boolean isFrequent(String username) {
+        return this.frequent.contains(username);
+    }
+
+    /**
+     * Get the frequent contacts, ranked when the sessions are opened in advance rather than on every message.
+     * @return the usernames of the frequent contacts, most frequent first
+     */
+    public synchronized List<String> getFrequentContacts() {
+        List<String> contacts = new ArrayList<>(this.frequent);
+        contacts.sort((first, second) -> Long.compare(this.counts.get(second), this.counts.get(first)));
+        return contacts;
+    }
+
+    /**
+     * Save the numbers of messages if they have changed since the last save. The file is
+     * replaced in one step, so that a crash while saving does not lose the previous numbers.
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        if (!this.dirty)
+            return;
+
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> entry : this.counts.entrySet())
+            properties.setProperty(entry.getKey(), Long.toString(entry.getValue()));
+        File directory = this.file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("The directory of the contacts cannot be created: " + directory);
+        File temporary = new File(directory, this.file.getName() + ".tmp");
+        try (OutputStream output = new FileOutputStream(temporary)) {
+            properties.store(output, "number of messages sent to each user");
+        }
+        Files.move(temporary.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        this.dirty = false;
+    }
+
+    /**
+     * Compute the frequent contacts from the numbers of messages loaded from the file.
+     */
+    private void rank() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(this.counts.entrySet());
+        entries.sort((first, second) -> Long.compare(second.getValue(), first.getValue()));
+        Set<String> frequent = new HashSet<>();
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(this.budget, entries.size())))
+            frequent.add(entry.getKey());
+        this.frequent = Collections.unmodifiableSet(frequent);
+    }
+
+}
@@ -0,0 +1,135 @@
+package fr.ensibs.peerExpress;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The resolver of the JMS objects of the JORAM servers through their JNDI service. Each
+ * lookup builds its own JNDI environment rather than setting the global system properties,
+ * so that the lookups of different threads do not interfere, and the connection factory and
+ * the destination of a server are looked up once, with the same context, then cached until
+ * they are invalidated, e.g. when a user moves to another server.
+ */
+public class JndiResolver implements ConnectionPool.Opener {
+
+    /**
+     * the class of the initial context factory of the JNDI service of JORAM
+     */
+    private static final String CONTEXT_FACTORY = "fr.dyade.aaa.jndi2.client.NamingContextFactory";
+
+    /**
+     * the name of the connection factory in the JNDI service
+     */
+    private static final String CONNECTION_FACTORY = "ConnectionFactory";
+
+    /**
+     * the name of the destination of the messages in the JNDI service
+     */
+    private final String destinationName;
+
+    /**
+     * the JMS objects of the JORAM servers identified by their host and port
+     */
+    private final ConcurrentMap<String, JmsObjects> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param destinationName the name of the destination of the messages in the JNDI service
+     */
+    public JndiResolver(String destinationName) {
+        this.destinationName = destinationName;
+    }
+
+    @Override
+    public Connection createConnection(String host, int port) throws NamingException, JMSException {
+        return this.resolve(host, port).factory.createConnection();
+    }
+
+    @Override
+    public Destination getDestination(String host, int port) throws NamingException {
+        return this.resolve(host, port).destination;
+    }
+
+    /**
+     * Forget the JMS objects of a JORAM server, so that they are looked up again next time.
+     * @param host the host of the JNDI service
+     * @param port the port of the JNDI service
+     */
+    public void invalidate(String host, int port) {
+        this.cache.remove(address(host, port));
+    }
+
+    /**
+     * Get the JMS objects of a JORAM server, looking them up if they are not cached. Two
+     * threads may look up the same server at once, in which case the first result is kept.
+     * @param host the host of the JNDI service
+     * @param port the port of the JNDI service
+     * @return the JMS objects of the server
+     * @throws NamingException if the JNDI service cannot be reached or the objects are not found
+     */
+    private JmsObjects resolve(String host, int port) throws NamingException {
+        String address = address(host, port);
+        JmsObjects objects = this.cache.get(address);
+        if (objects != null)
+            return objects;
+
+        Hashtable<String, String> environment = new Hashtable<>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, CONTEXT_FACTORY);
+        environment.put("java.naming.factory.host", host);
+        environment.put("java.naming.factory.port", Integer.toString(port));
+        Context context = new InitialContext(environment);
+        try {
+            objects = new JmsObjects((ConnectionFactory) context.lookup(CONNECTION_FACTORY),
+                    (Destination) context.lookup(this.destinationName));
+        } finally {
+            context.close();
+        }
+        JmsObjects previous = this.cache.putIfAbsent(address, objects);
+        return previous != null ? previous : objects;
+    }
+
+    /**
+     * Get the key of a JORAM server in the cache.
+     * @param host the host of the JNDI service
+     * @param port the port of the JNDI service
+     * @return the host and port of the server
+     */
+    private static String address(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * The JMS objects of a JORAM server.
+     */
+    private static class JmsObjects {
+
+        /**
+         * the connection factory of the server
+         */
+        private final ConnectionFactory factory;
+
+        /**
+         * the destination of the messages on the server
+         */
+        private final Destination destination;
+
+        /**
+         * Constructor.
+         * @param factory the connection factory of the server
+         * @param destination the destination of the messages on the server
+         */
+        private JmsObjects(ConnectionFactory factory, Destination destination) {
+            this.factory = factory;
+            this.destination = destination;
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package fr.ensibs.peerExpress;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * The pipeline sending the messages of the user off the thread of the user interface. The
+ * messages to the same recipient are sent one at a time and in order, while the messages to
+ * different recipients are sent in parallel by a few worker threads, so that a slow recipient
+ * only delays its own conversation. The number of messages waiting to be sent is bounded,
+ * the messages beyond being rejected right away. A task reports its own result, the
+ * unexpected exceptions it throws being handed to a failure handler.
+ */
+public class OutboundPipeline {
+
+    /**
+     * the worker threads sending the messages
+     */
+    private final ExecutorService workers;
+
+    /**
+     * the maximum number of messages waiting to be sent
+     */
+    private final int maxPending;
+
+    /**
+     * the handler of the unexpected exceptions of the tasks, given the username of the recipient
+     */
+    private final BiConsumer<String, RuntimeException> failureHandler;
+
+    /**
+     * the number of messages waiting to be sent or being sent
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * the queues of the recipients having messages waiting to be sent, identified by their username
+     */
+    private final Map<String, RecipientQueue> queues = new HashMap<>();
+
+    /**
+     * true once the pipeline has been closed
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * @param threads the number of worker threads, i.e. of recipients to which messages are sent at the same time
+     * @param maxPending the maximum number of messages waiting to be sent
+     * @param failureHandler the handler of the unexpected exceptions of the tasks, given the
+     *                       username of the recipient, e.g. to tell the user that a message is lost
+     */
+    public OutboundPipeline(int threads, int maxPending, BiConsumer<String, RuntimeException> failureHandler) {
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "outbound-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxPending = maxPending;
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Queue the sending of a message, after the messages already queued for the same recipient.
+     * @param recipient the username of the recipient
+     * @param task the task sending the message and reporting its result
+     * @return true if the message has been queued, false if too many messages are waiting
+     * or the pipeline has been closed
+     */
+    public boolean submit(String recipient, Runnable task) {
+        if (this.pending.incrementAndGet() > this.maxPending) {
+            this.pending.decrementAndGet();
+            return false;
+        }
+
+        synchronized (this) {
+            if (this.closed) {
+                this.pending.decrementAndGet();
+                return false;
+            }
+            RecipientQueue queue = this.queues.computeIfAbsent(recipient, RecipientQueue::new);
+            queue.tasks.add(task);
+            // a single worker drains the queue of a recipient at a time, which keeps the order
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                this.workers.execute(() -> this.drain(queue));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of messages waiting to be sent or being sent.
+     * @return the number of messages not sent yet
+     */
+    public int getPending() {
+        return this.pending.get();
+    }
+
+    /**
+     * Stop accepting messages and wait for the queued messages to be sent.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if all the queued messages have been sent, false if the timeout expired
+     */
+    public boolean close(long timeout) {
+        synchronized (this) {
+            this.closed = true;
+        }
+        this.workers.shutdown();
+        try {
+            return this.workers.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Send the messages of a recipient until its queue is empty.
+     * @param queue the queue of the recipient
+     */
+    private void drain(RecipientQueue queue) {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = queue.tasks.poll();
+                if (task == null) {
+                    queue.scheduled = false;
+                    this.queues.remove(queue.recipient);
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                this.failureHandler.accept(queue.recipient, e);
+            } finally {
+                this.pending.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The messages waiting to be sent to a recipient.
+     */
+    private static class RecipientQueue {
+
+        /**
+         * the username of the recipient
+         */
+        private final String recipient;
+
+        /**
+         * the tasks sending the messages, in order
+         */
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        /**
+         * true if a worker is draining the queue or has been asked to
+         */
+        private boolean scheduled;
+
+        /**
+         * Constructor.
+         * @param recipient the username of the recipient
+         */
+        private RecipientQueue(String recipient) {
+            this.recipient = recipient;
+        }
+    }
+
+}
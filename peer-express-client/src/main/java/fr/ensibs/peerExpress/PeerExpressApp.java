@@ -7,18 +7,33 @@ import fr.ensibs.peerExpress.ui.GraphicUserInterface;
 import fr.ensibs.peerExpress.ui.UserInterface;
 
 import javax.jms.*;
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.xml.ws.AsyncHandler;
+import javax.xml.ws.BindingProvider;
 import javax.xml.ws.Response;
+import javax.xml.ws.WebServiceException;
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
 * The entry point for the PeerExpress messaging application that allows to
@@ -32,19 +47,122 @@ public class PeerExpressApp {
     private String username;
 
     /**
-     * the registration token of the user
+     * the registration token of the user, replaced when the user registers again
      */
-    private String token;
+    private volatile String token;
 
     /**
-     * the info on the users identified by their username
+     * the host of the local JORAM server
      */
-    private Map<String, UserInfo> usersInfo = new HashMap<>();
+    private final String host;
 
     /**
-     * the signaling server
+     * the port of the local JORAM server
      */
-    private PeerExpressSignaling signaling;
+    private final int port;
+
+    /**
+     * true while the user registers again after its registration has been lost
+     */
+    private final AtomicBoolean registeringAgain = new AtomicBoolean();
+
+    /**
+     * the info on the users identified by their username, updated by the threads receiving
+     * the membership events and read by the threads sending the messages
+     */
+    private final Map<String, UserInfo> usersInfo = new ConcurrentHashMap<>();
+
+    /**
+     * the users resolved with the signaling server although their changes are not received,
+     * identified by their username and kept for a limited time since they may register again
+     */
+    private final Map<String, ResolvedUser> resolvedUsers = new ConcurrentHashMap<>();
+
+    /**
+     * the usernames of the users whose registrations and deregistrations are received,
+     * empty to receive those of the whole directory
+     */
+    private final List<String> roster;
+
+    /**
+     * the version of the directory of the signaling server known by the app
+     */
+    private long directoryVersion = -1;
+
+    /**
+     * the sequence number up to which the membership log of the signaling server has been read
+     */
+    private volatile long eventSequence;
+
+    /**
+     * the signaling servers, replicas of the same directory
+     */
+    private final List<PeerExpressSignaling> replicas = new ArrayList<>();
+
+    /**
+     * the signaling servers of the partitions of the directory ordered by index, empty if the directory is not partitioned
+     */
+    private final List<PeerExpressSignaling> partitions = new ArrayList<>();
+
+    /**
+     * the index of the signaling server currently used among the replicas
+     */
+    private volatile int replica;
+
+    /**
+     * the signaling server currently used
+     */
+    private volatile PeerExpressSignaling signaling;
+
+    /**
+     * the thread renewing the registration lease of the user, saving the contacts and closing
+     * the idle sessions, which must not wait for the signaling servers beyond a renewal
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "signaling-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * the thread retrying the failed requests, i.e. restarting the membership events and
+     * registering again, which may wait for an overloaded signaling server without delaying
+     * the lease renewals
+     */
+    private final ScheduledExecutorService recovery = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "signaling-recovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * the resolver of the JMS objects of the JORAM servers
+     */
+    private final JndiResolver jndi = new JndiResolver(DEST);
+
+    /**
+     * the sessions with the JORAM servers of the other users
+     */
+    private final ConnectionPool connections = new ConnectionPool(this.jndi, MAX_SESSIONS, SESSION_IDLE_TIMEOUT);
+
+    /**
+     * the pipeline sending the messages off the thread of the user interface
+     */
+    private final OutboundPipeline outbound = new OutboundPipeline(SEND_THREADS, MAX_PENDING_MESSAGES,
+            (recipient, e) -> this.userInterface.displayError("The message to " + recipient
+                    + " could not be sent: " + e.getMessage()));
+
+    /**
+     * the thread opening in advance the sessions with the frequent contacts, apart from the
+     * pipeline so that an unreachable contact does not delay the messages; the sessions
+     * beyond the pre-warm budget waiting to be opened are dropped
+     */
+    private final ThreadPoolExecutor prewarmer;
+
+    /**
+     * the number of messages sent to each other user, used to open in advance the sessions with the frequent contacts
+     */
+    private final ContactHistory contacts;
 
     /**
      * the user interface of the app
@@ -56,16 +174,97 @@ public class PeerExpressApp {
      */
     private static String DEST = "PEEREXPRESS";
 
+    /**
+     * the maximum number of events fetched by a long polling request
+     */
+    private static final int POLL_BATCH_SIZE = 500;
+
+    /**
+     * the time in milliseconds after which the server answers a long polling request with no event
+     */
+    private static final long POLL_TIMEOUT = 30000;
+
+    /**
+     * the maximum number of users or changes fetched by a directory request
+     */
+    private static final int DIRECTORY_PAGE_SIZE = 500;
+
+    /**
+     * the time in milliseconds to wait before retrying a request on another signaling server
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    /**
+     * the maximum number of users found by a search
+     */
+    private static final int SEARCH_LIMIT = 50;
+
+    /**
+     * the maximum number of times a request rejected by an overloaded signaling server is sent
+     */
+    private static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * the maximum number of sessions with other users kept open
+     */
+    private static final int MAX_SESSIONS = 64;
+
+    /**
+     * the time in milliseconds after which a session with another user is closed if no message was sent
+     */
+    private static final long SESSION_IDLE_TIMEOUT = 300000;
+
+    /**
+     * the number of recipients to which messages are sent at the same time
+     */
+    private static final int SEND_THREADS = 4;
+
+    /**
+     * the maximum number of messages waiting to be sent
+     */
+    private static final int MAX_PENDING_MESSAGES = 1000;
+
+    /**
+     * the maximum time in milliseconds to wait for the messages being sent when the app stops
+     */
+    private static final long SEND_FLUSH_TIMEOUT = 2000;
+
+    /**
+     * the default number of frequent contacts whose sessions are opened in advance
+     */
+    private static final int DEFAULT_PREWARM_BUDGET = 10;
+
+    /**
+     * the time in milliseconds between two saves of the number of messages sent to each other user
+     */
+    private static final long CONTACTS_SAVE_PERIOD = 60000;
+
+    /**
+     * the maximum random delay in milliseconds added to the time after which a rejected request is retried
+     */
+    private static final long MAX_BACKOFF = 60000;
+
+    /**
+     * the time in milliseconds during which a user resolved outside the roster is trusted
+     */
+    private static final long LOOKUP_TTL = 30000;
+
     /**
      * Print a usage message and exit.
      */
     private static void usage() {
-        System.out.println("Usage: java PeerExpressApp <username> <port> <config path>?");
+        System.out.println("Usage: java PeerExpressApp <username> <port> <config path>? [--console] [--signaling <urls>]"
+                + " [--roster <usernames>] [--prewarm <count>]");
         System.out.println("Launch the PeerExpress client application, with:");
         System.out.println("<username>      the username in the community");
         System.out.println("<port>          the opened port of the local JORAM server");
         System.out.println("<config path>   (optional) the path of the config directory of the JORAM server");
         System.out.println("             use different paths if you want to run multiple clients on the same machine");
+        System.out.println("--console       (optional) use the console instead of the graphic user interface");
+        System.out.println("<urls>          (optional) the comma-separated addresses of the replicas of the signaling service");
+        System.out.println("<usernames>     (optional) the comma-separated usernames of the only users to follow");
+        System.out.println("<count>         (optional) the number of frequent contacts whose sessions are opened in advance,"
+                + " " + DEFAULT_PREWARM_BUDGET + " by default, 0 to disable");
         System.exit(0);
     }
 
@@ -81,18 +280,33 @@ public class PeerExpressApp {
             String username = args[0];
             int port = Integer.parseInt(args[1]);
 
+            int index = 2;
             File configDirectory = null;
-            if (args.length >= 3)
-                configDirectory = new File(args[2]);
+            if (args.length > index && !args[index].startsWith("--"))
+                configDirectory = new File(args[index++]);
 
             boolean consoleMode = false;
-            if (args.length >= 4 && "--console".equals(args[3]))
-                consoleMode = true;
+            List<String> signalingAddresses = Collections.emptyList();
+            List<String> roster = Collections.emptyList();
+            int prewarmBudget = DEFAULT_PREWARM_BUDGET;
+            for (; index < args.length; index++) {
+                if ("--console".equals(args[index]))
+                    consoleMode = true;
+                else if ("--signaling".equals(args[index]) && index + 1 < args.length)
+                    signalingAddresses = Arrays.asList(args[++index].split(","));
+                else if ("--roster".equals(args[index]) && index + 1 < args.length)
+                    roster = Arrays.asList(args[++index].split(","));
+                else if ("--prewarm".equals(args[index]) && index + 1 < args.length)
+                    prewarmBudget = Integer.parseInt(args[++index]);
+                else
+                    usage();
+            }
 
-            PeerExpressApp instance = new PeerExpressApp(username, port, configDirectory, consoleMode);
+            PeerExpressApp instance = new PeerExpressApp(username, port, configDirectory, consoleMode,
+                    signalingAddresses, roster, prewarmBudget);
             instance.run();
         } catch (NumberFormatException e) {
-            System.err.println("The port is not a number: " + args[1]);
+            System.err.println("The port or the pre-warm budget is not a number: " + e.getMessage());
             usage();
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -105,10 +319,39 @@ public class PeerExpressApp {
      * @param port the opened port of the local JORAM server
      * @param configDirectory the JORAM configuration directory, if set to null, use $USER_HOME/.joram
      * @param consoleMode if set to true, the app is in console mode, otherwise the graphic user interface is used
+     * @param signalingAddresses the addresses of the replicas of the signaling service, or an empty
+     *                           list to use the address of its WSDL description
+     * @param roster the usernames of the only users whose registrations and deregistrations
+     *               are received, or an empty list to receive those of the whole directory
+     * @param prewarmBudget the number of frequent contacts whose sessions are opened in advance,
+     *                      at most the maximum number of sessions kept open
      */
-    public PeerExpressApp(String username, int port, File configDirectory, boolean consoleMode) throws Exception {
+    public PeerExpressApp(String username, int port, File configDirectory, boolean consoleMode,
+                          List<String> signalingAddresses, List<String> roster, int prewarmBudget) throws Exception {
         this.username = username;
+        this.roster = roster;
         String host = InetAddress.getLocalHost().getHostName();
+        this.host = host;
+        this.port = port;
+
+        // the contacts are kept next to the data of the local JORAM server, one file per user
+        File dataDirectory = configDirectory != null ? configDirectory
+                : new File(System.getProperty("user.home"), ".joram");
+        int budget = Math.max(0, Math.min(prewarmBudget, MAX_SESSIONS));
+        this.contacts = new ContactHistory(new File(dataDirectory, "contacts-" + username + ".properties"), budget);
+        this.prewarmer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, budget)), runnable -> {
+            Thread thread = new Thread(runnable, "session-prewarm");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        this.scheduler.scheduleWithFixedDelay(this::saveContacts, CONTACTS_SAVE_PERIOD, CONTACTS_SAVE_PERIOD,
+                TimeUnit.MILLISECONDS);
+
+        // the sessions with the other users are opened on the first message and closed once idle
+        this.scheduler.scheduleWithFixedDelay(this.connections::evictIdle, SESSION_IDLE_TIMEOUT / 10,
+                SESSION_IDLE_TIMEOUT / 10, TimeUnit.MILLISECONDS);
 
         // create the user interface
         this.userInterface = consoleMode ? new ConsoleUserInterface(this) : new GraphicUserInterface(this);
@@ -125,8 +368,8 @@ public class PeerExpressApp {
         joramAdmin.createQueue(DEST);
 
         // create the consumer session to the local JORAM server
-        Connection localConnection = this.createConnection(host, port);
-        Destination destination = this.getDestination(host, port);
+        Connection localConnection = this.jndi.createConnection(host, port);
+        Destination destination = this.jndi.getDestination(host, port);
         Session consumerSession = localConnection.createSession();
         MessageConsumer consumer = consumerSession.createConsumer(destination);
         consumer.setMessageListener(message -> {
@@ -140,21 +383,21 @@ public class PeerExpressApp {
         });
         localConnection.start();
 
-        // register the user in the SOAP signaling server
-        PeerExpressSignaling_Service service = new PeerExpressSignaling_Service();
-        this.signaling = service.getPeerExpressSignalingPort();
-        this.token = this.signaling.registerUser(username, host, port);
+        // register the user in one of the SOAP signaling servers, chosen at random to spread the users
+        this.createReplicas(signalingAddresses);
+        this.replica = ThreadLocalRandom.current().nextInt(this.replicas.size());
+        this.signaling = this.replicas.get(this.replica);
+        this.routeToPartition();
+        this.register(host, port);
+        this.startLeaseRenewal();
 
         // create the list containing info on the other users
-        List<User> registeredUsers = this.signaling.getRegisteredUsers();
-        for (User user : registeredUsers) {
-            UserInfo info = new UserInfo(user, null, null);
-            this.usersInfo.put(user.getUsername(), info);
-        }
+        this.initializeDirectory();
+        for (String contact : this.contacts.getFrequentContacts())
+            this.prewarm(contact);
 
-        // start fetching newly registered users and deregistered users
-        this.startLongPollingRegistration();
-        this.startLongPollingDeregistration();
+        // start fetching the registrations and deregistrations of the other users
+        this.startEventStream();
     }
 
     /**
@@ -173,22 +416,85 @@ public class PeerExpressApp {
     }
 
     /**
-     * Send a message to an user.
+     * Send a message to an user in the background, after the messages already sent to this
+     * user. The user interface is notified once the message has been sent, or of the error.
      * @param recipient the username of the recipient
      * @param content the content of the message to send
      */
     public void send(String recipient, String content) {
+        if (!this.outbound.submit(recipient, () -> this.deliver(recipient, content)))
+            this.userInterface.displayError("Too many messages are waiting to be sent, the message to "
+                    + recipient + " has been dropped");
+    }
+
+    /**
+     * Send a message to an user and notify the user interface of the result.
+     * @param recipient the username of the recipient
+     * @param content the content of the message to send
+     */
+    private void deliver(String recipient, String content) {
+        try {
+            UserInfo info = this.getUserInfo(recipient);
+            try {
+                this.sendTo(recipient, info.getUser(), content);
+            } catch (JMSException | NamingException e) {
+                // the recipient may have registered again with another JORAM server, which the app did not learn
+                UserInfo current = this.lookupUser(recipient);
+                User user = current.getUser();
+                if (user.getHost().equals(info.getUser().getHost()) && user.getPort() == info.getUser().getPort())
+                    throw e;
+                this.releaseUser(recipient, info);
+                if (!this.usersInfo.replace(recipient, info, current))
+                    this.resolvedUsers.remove(recipient);
+                this.sendTo(recipient, user, content);
+            }
+            this.contacts.record(recipient);
+            this.userInterface.notifyMessageSent(recipient, content);
+        } catch (JMSException | NamingException | PeerExpressSignalingHTTP_Exception e) {
+            this.userInterface.displayError(e.getMessage());
+        }
+    }
+
+    /**
+     * Send a message to an user at its known address.
+     * @param recipient the username of the recipient
+     * @param user the recipient
+     * @param content the content of the message to send
+     * @throws JMSException if the message could not be sent
+     * @throws NamingException if the JORAM server of the recipient could not be reached
+     */
+    private void sendTo(String recipient, User user, String content) throws JMSException, NamingException {
+        try {
+            this.connections.send(recipient, user.getHost(), user.getPort(), (session, producer) -> {
+                TextMessage textMessage = session.createTextMessage(content);
+                textMessage.setStringProperty("sender", this.username);
+                producer.send(textMessage);
+            });
+        } catch (JMSException e) {
+            // the cached objects of the JORAM server may be stale, e.g. if it has restarted
+            this.jndi.invalidate(user.getHost(), user.getPort());
+            throw e;
+        }
+    }
+
+    /**
+     * Show the registered users whose username starts with a given prefix, as known by the
+     * signaling servers rather than by the app.
+     * @param prefix the prefix of the usernames
+     */
+    public void searchUsers(String prefix) {
         try {
-            UserInfo info = this.usersInfo.get(recipient);
-            if (!info.isSessionEstablished())
-                this.establishUserSession(recipient);
-
-            Session session = info.getSession();
-            MessageProducer producer = info.getProducer();
-            TextMessage textMessage = session.createTextMessage(content);
-            textMessage.setStringProperty("sender", this.username);
-            producer.send(textMessage);
-        } catch (JMSException | NamingException e) {
+            // the partitions are searched separately, so their results are merged in username order
+            Map<String, User> users = new TreeMap<>();
+            List<PeerExpressSignaling> servers = this.partitions.isEmpty()
+                    ? Collections.singletonList(this.signaling) : this.partitions;
+            for (PeerExpressSignaling server : servers) {
+                for (User user : server.searchUsers(prefix, SEARCH_LIMIT))
+                    users.put(user.getUsername(), user);
+            }
+            List<User> found = new ArrayList<>(users.values());
+            this.userInterface.showUsers(found.subList(0, Math.min(found.size(), SEARCH_LIMIT)));
+        } catch (PeerExpressSignalingHTTP_Exception | WebServiceException e) {
             this.userInterface.displayError(e.getMessage());
         }
     }
@@ -212,108 +518,621 @@ public class PeerExpressApp {
         } catch (PeerExpressSignalingHTTP_Exception e) {
             this.userInterface.displayError(e.getMessage());
         }
+        this.prewarmer.shutdownNow();
+        this.outbound.close(SEND_FLUSH_TIMEOUT);
+        this.connections.close();
+        this.saveContacts();
         System.exit(0);
     }
 
     /**
-     * Establish a session with a JORAM server and update the UserInfo object
-     * @param username the name of the user to establish a session with
-     * @throws NamingException if an error occurred
-     * @throws JMSException if an error occurred
+     * Open in advance the session with a frequent contact in the background. Nothing is done if
+     * the user is not registered, or while messages are waiting for every sending thread, since
+     * the messages come first; a failure is ignored since the session is opened again by the
+     * first message.
+     * @param contact the username of the contact
      */
-    private void establishUserSession(String username) throws NamingException, JMSException {
+    private void prewarm(String contact) {
+        if (this.outbound.getPending() >= SEND_THREADS)
+            return;
+        this.prewarmer.execute(() -> {
+            UserInfo info = this.usersInfo.get(contact);
+            if (info == null || this.outbound.getPending() >= SEND_THREADS)
+                return;
+            User user = info.getUser();
+            try {
+                this.connections.prewarm(contact, user.getHost(), user.getPort());
+            } catch (JMSException e) {
+                this.jndi.invalidate(user.getHost(), user.getPort());
+            } catch (NamingException e) {
+                // the JORAM server of the contact is not reachable yet
+            }
+        });
+    }
+
+    /**
+     * Save the number of messages sent to each other user, reporting a failure to the user interface.
+     */
+    private void saveContacts() {
+        try {
+            this.contacts.save();
+        } catch (IOException e) {
+            // an exception would cancel the next saves
+            this.userInterface.displayError("The contacts cannot be saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create the ports of the replicas of the signaling service, the WSDL description
+     * being read from the first replica that answers.
+     * @param addresses the addresses of the replicas, or an empty list to use the address of the WSDL description
+     * @throws MalformedURLException if an address is invalid
+     */
+    private void createReplicas(List<String> addresses) throws MalformedURLException {
+        if (addresses.isEmpty()) {
+            this.replicas.add(new PeerExpressSignaling_Service().getPeerExpressSignalingPort());
+            return;
+        }
+
+        PeerExpressSignaling_Service service = null;
+        for (int i = 0; service == null; i++) {
+            try {
+                service = new PeerExpressSignaling_Service(new URL(addresses.get(i) + "?wsdl"));
+            } catch (WebServiceException e) {
+                if (i == addresses.size() - 1)
+                    throw e;
+            }
+        }
+        for (String address : addresses)
+            this.replicas.add(createPort(service, address));
+    }
+
+    /**
+     * Create a port of the signaling service at a given address.
+     * @param service the signaling service
+     * @param address the address of the port
+     * @return the port
+     */
+    private static PeerExpressSignaling createPort(PeerExpressSignaling_Service service, String address) {
+        PeerExpressSignaling port = service.getPeerExpressSignalingPort();
+        ((BindingProvider) port).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, address);
+        return port;
+    }
+
+    /**
+     * Fetch the routing table of the signaling servers, and if the directory is partitioned,
+     * use the server of the partition of the user, which checks its token and merges the
+     * events of all the partitions.
+     * @throws MalformedURLException if the address of a partition is invalid
+     */
+    private void routeToPartition() throws MalformedURLException {
+        List<String> addresses = this.signaling.getRoutingTable().getPartitions();
+        if (addresses.size() <= 1)
+            return;
+
+        PeerExpressSignaling_Service service = new PeerExpressSignaling_Service(new URL(addresses.get(0) + "?wsdl"));
+        for (String address : addresses)
+            this.partitions.add(createPort(service, address));
+        this.replicas.clear();
+        this.replicas.add(this.partitions.get(partitionOf(this.username, addresses.size())));
+        this.replica = 0;
+        this.signaling = this.replicas.get(0);
+    }
+
+    /**
+     * Get the partition of a user, computed as by the signaling servers.
+     * @param username the username of the user
+     * @param count the number of partitions
+     * @return the index of the partition of the user
+     */
+    private static int partitionOf(String username, int count) {
+        return Math.floorMod(username.hashCode(), count);
+    }
+
+    /**
+     * Register the user, trying the other replicas if the current one cannot be reached.
+     * @param host the host of the local JORAM server
+     * @param port the port of the local JORAM server
+     * @throws PeerExpressSignalingHTTP_Exception if the registration was rejected
+     */
+    private void register(String host, int port) throws PeerExpressSignalingHTTP_Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                this.token = withBackoff(() -> this.signaling.registerUser(this.username, host, port));
+                return;
+            } catch (WebServiceException e) {
+                if (attempt >= this.replicas.size())
+                    throw e;
+                this.failover();
+            }
+        }
+    }
+
+    /**
+     * Use the next replica of the signaling service, after the current one could not be reached.
+     * The replicas share the sequence numbers of the membership log, so the events are fetched
+     * from the next replica from the same position.
+     */
+    private void failover() {
+        if (this.replicas.size() > 1) {
+            this.replica = (this.replica + 1) % this.replicas.size();
+            this.signaling = this.replicas.get(this.replica);
+        }
+    }
+
+    /**
+     * Start renewing periodically the registration lease of the user, several
+     * times per lease duration so that a lost renewal does not unregister the user.
+     * @throws PeerExpressSignalingHTTP_Exception if an error occurred
+     */
+    private void startLeaseRenewal() throws PeerExpressSignalingHTTP_Exception {
+        long period = this.signaling.renewLease(this.username, this.token) / 3;
+        this.scheduler.scheduleAtFixedRate(() -> {
+            try {
+                this.signaling.renewLease(this.username, this.token);
+            } catch (PeerExpressSignalingHTTP_Exception e) {
+                // an exception would cancel the next renewals
+                if (e.getFaultInfo().getHttpCode() == 404)
+                    this.recovery.execute(this::registerAgain);
+                else
+                    this.userInterface.displayError(e.getMessage());
+            } catch (WebServiceException e) {
+                // the next renewal is sent to another replica
+                this.failover();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register the user again once its lease has expired, e.g. after the signaling server could
+     * not be reached for a lease duration, since the other users no longer see it. The events
+     * are then received with a new token from a new position, the directory being read again.
+     * A single registration is attempted at a time, a failed one being retried on the next renewal.
+     */
+    private void registerAgain() {
+        if (!this.registeringAgain.compareAndSet(false, true))
+            return;
+        try {
+            this.register(this.host, this.port);
+            this.initializeDirectory();
+            this.startEventStream();
+        } catch (PeerExpressSignalingHTTP_Exception | WebServiceException e) {
+            this.userInterface.displayError(e.getMessage());
+        } finally {
+            this.registeringAgain.set(false);
+        }
+    }
+
+    /**
+     * Bring the info on the other users up to date with the directory of the
+     * signaling server, by fetching only the changes since the known version of the
+     * directory, or the full directory page by page if the server no longer knows them.
+     * @throws PeerExpressSignalingHTTP_Exception if an error occurred
+     */
+    private void synchronizeDirectory() throws PeerExpressSignalingHTTP_Exception {
+        DirectoryDelta delta = withBackoff(() -> this.signaling.getRegisteredUsersSince(this.directoryVersion,
+                DIRECTORY_PAGE_SIZE));
+        while (true) {
+            if (delta.isSnapshot()) {
+                // the changes made while paging are fetched afterwards from the version of the first page,
+                // read from the server of the user whose log merges the changes of all the partitions
+                long version = delta.getVersion();
+                Map<String, User> users = new HashMap<>();
+                if (this.partitions.isEmpty()) {
+                    this.readDirectory(this.signaling, delta, users);
+                } else {
+                    for (PeerExpressSignaling partition : this.partitions)
+                        this.readDirectory(partition, withBackoff(() -> partition.getRegisteredUsersPage(null,
+                                DIRECTORY_PAGE_SIZE)), users);
+                }
+                for (String name : new ArrayList<>(this.usersInfo.keySet())) {
+                    if (!users.containsKey(name))
+                        this.notifyDirectoryChange(name, this.usersInfo.remove(name), null);
+                }
+                this.connections.retainAll(users.keySet());
+                for (User user : users.values())
+                    this.notifyDirectoryChange(user.getUsername(),
+                            this.usersInfo.put(user.getUsername(), new UserInfo(user)), user);
+                this.directoryVersion = version;
+            } else {
+                for (String removed : delta.getRemoved()) {
+                    UserInfo previous = this.usersInfo.remove(removed);
+                    this.releaseUser(removed, previous);
+                    this.notifyDirectoryChange(removed, previous, null);
+                }
+                for (User user : delta.getAdded())
+                    this.notifyDirectoryChange(user.getUsername(),
+                            this.usersInfo.put(user.getUsername(), new UserInfo(user)), user);
+                this.directoryVersion = delta.getVersion();
+                if (delta.isComplete())
+                    return;
+            }
+            delta = withBackoff(() -> this.signaling.getRegisteredUsersSince(this.directoryVersion,
+                    DIRECTORY_PAGE_SIZE));
+        }
+    }
+
+    /**
+     * Notify the user interface of the change of a user found while synchronizing the directory,
+     * a user who changed its host or port being shown as deregistered then registered again.
+     * @param username the username of the user
+     * @param previous the info on the user before the change, or null if the user was unknown
+     * @param user the user after the change, or null if the user has deregistered
+     */
+    private void notifyDirectoryChange(String username, UserInfo previous, User user) {
+        if (username.equals(this.username))
+            return;
+        boolean moved = previous != null && user != null
+                && !(previous.getUser().getHost().equals(user.getHost()) && previous.getUser().getPort() == user.getPort());
+        if (moved)
+            this.releaseUser(username, previous);
+        if (previous != null && (user == null || moved))
+            this.userInterface.notifyNewUserDeregistration(username);
+        if (user != null && (previous == null || moved))
+            this.userInterface.notifyNewUserRegistration(username, user.getHost(), user.getPort());
+    }
+
+    /**
+     * Get the info on a user, resolving it with the signaling server if the app does not know it. The info
+     * on a user outside the roster is not updated by the membership events, so it is only kept for a
+     * limited time; the info on a user whose changes are received is not kept, its next event adding it.
+     * @param username the username of the user
+     * @return the info on the user
+     * @throws PeerExpressSignalingHTTP_Exception if the user is not registered
+     */
+    private UserInfo getUserInfo(String username) throws PeerExpressSignalingHTTP_Exception {
         UserInfo info = this.usersInfo.get(username);
-        User user = info.getUser();
-        String host = user.getHost();
-        int port = user.getPort();
-        Connection connection = this.createConnection(host, port);
-        Destination destination = this.getDestination(host, port);
+        if (info != null)
+            return info;
+
+        long now = System.currentTimeMillis();
+        ResolvedUser resolved = this.resolvedUsers.get(username);
+        if (resolved != null && resolved.expiry > now)
+            return resolved.info;
+
+        info = this.lookupUser(username);
+        if (!this.roster.isEmpty() && !this.roster.contains(username)) {
+            this.resolvedUsers.values().removeIf(user -> user.expiry <= now);
+            this.resolvedUsers.put(username, new ResolvedUser(info, now + LOOKUP_TTL));
+        }
+        return info;
+    }
+
+    /**
+     * Resolve a user with the signaling server of its partition.
+     * @param username the username of the user
+     * @return the info on the user
+     * @throws PeerExpressSignalingHTTP_Exception if the user is not registered
+     */
+    private UserInfo lookupUser(String username) throws PeerExpressSignalingHTTP_Exception {
+        PeerExpressSignaling server = this.partitions.isEmpty() ? this.signaling
+                : this.partitions.get(partitionOf(username, this.partitions.size()));
+        return new UserInfo(withBackoff(() -> server.lookupUser(username)));
+    }
+
+    /**
+     * Get the info on the other users, either the whole directory or only the users of the
+     * roster, and the position in the membership log from which their changes are fetched.
+     * @throws PeerExpressSignalingHTTP_Exception if an error occurred
+     */
+    private void initializeDirectory() throws PeerExpressSignalingHTTP_Exception {
+        if (this.roster.isEmpty()) {
+            this.synchronizeDirectory();
+            this.eventSequence = this.directoryVersion;
+        } else {
+            this.eventSequence = this.subscribeToRoster();
+        }
+    }
 
-        Session session = connection.createSession();
-        MessageProducer producer = session.createProducer(destination);
-        info.setSession(session);
-        info.setProducer(producer);
-        connection.start();
+    /**
+     * Set the roster of the user on the signaling server, and look up the users of the roster.
+     * The users changed during the lookups are also received as events, which is harmless.
+     * @return the position in the membership log from which the events of the roster are fetched
+     * @throws PeerExpressSignalingHTTP_Exception if an error occurred
+     */
+    private long subscribeToRoster() throws PeerExpressSignalingHTTP_Exception {
+        long sequence = withBackoff(() -> this.signaling.setRoster(this.username, this.token, this.roster));
+        this.usersInfo.keySet().retainAll(this.roster);
+        this.connections.retainAll(this.roster);
+        for (String name : this.roster) {
+            try {
+                this.usersInfo.put(name, this.lookupUser(name));
+                this.resolvedUsers.remove(name);
+            } catch (PeerExpressSignalingHTTP_Exception e) {
+                this.usersInfo.remove(name);
+            }
+        }
+        return sequence;
     }
 
     /**
-     * Set the needed JNDI properties.
-     * @param host the host of the JNDI service
-     * @param port the port of the JNDI service
+     * Read the full directory of a signaling server page by page.
+     * @param server the signaling server
+     * @param delta the first page of the directory
+     * @param users the users read, identified by their username
+     * @throws PeerExpressSignalingHTTP_Exception if an error occurred
      */
-    private void setJNDIProps(String host, int port) {
-        System.setProperty("java.naming.factory.initial", "fr.dyade.aaa.jndi2.client.NamingContextFactory");
-        System.setProperty("java.naming.factory.host", host);
-        System.setProperty("java.naming.factory.port", Integer.toString(port));
+    private void readDirectory(PeerExpressSignaling server, DirectoryDelta delta, Map<String, User> users)
+            throws PeerExpressSignalingHTTP_Exception {
+        while (true) {
+            for (User user : delta.getAdded())
+                users.put(user.getUsername(), user);
+            if (delta.isComplete() || delta.getAdded().isEmpty())
+                return;
+            String last = delta.getAdded().get(delta.getAdded().size() - 1).getUsername();
+            delta = withBackoff(() -> server.getRegisteredUsersPage(last, DIRECTORY_PAGE_SIZE));
+        }
     }
 
     /**
-     * Create a connection to a JORAM server
-     * @param host the host of the JNDI service
-     * @param port the port of the JNDI service
-     * @return the connection instance
-     * @throws NamingException if an error occurred
-     * @throws JMSException if an error occurred
+     * Close the session with a user and forget the JMS objects of its JORAM server, once
+     * the user has deregistered or registered again, possibly with another JORAM server.
+     * @param username the username of the user
+     * @param previous the info on the user before the change, or null if the user was unknown
      */
-    private Connection createConnection(String host, int port) throws NamingException, JMSException {
-        this.setJNDIProps(host, port);
-        Context context = new InitialContext();
-        ConnectionFactory factory = (ConnectionFactory) context.lookup("ConnectionFactory");
-        return factory.createConnection();
+    private void releaseUser(String username, UserInfo previous) {
+        this.connections.release(username);
+        if (previous != null)
+            this.jndi.invalidate(previous.getUser().getHost(), previous.getUser().getPort());
     }
 
     /**
-     * Get the destination of a JORAM server
-     * @param host the host of the JNDI service
-     * @param port the port of the JNDI service
-     * @return the destination instance
-     * @throws NamingException if an error occurred
+     * Start receiving the registrations and deregistrations of the other users
+     * through the event stream of the signaling server, or through the SOAP long
+     * polling if the event stream is not available or gets disconnected.
      */
-    private Destination getDestination(String host, int port) throws NamingException {
-        this.setJNDIProps(host, port);
-        Context context = new InitialContext();
-        return (Destination) context.lookup(DEST);
+    private void startEventStream() {
+        String token = this.token;
+        PushChannel channel;
+        try {
+            channel = new PushChannel(this.getEventStreamAddress(), this.username, token, this.eventSequence);
+        } catch (IOException | RuntimeException e) {
+            this.startLongPolling();
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                MembershipBatch batch;
+                // the stream of a lost registration is left once the user has registered again
+                while ((batch = channel.readBatch()) != null && token.equals(this.token))
+                    this.applyMembershipBatch(batch);
+            } catch (IOException e) {
+                this.userInterface.displayError(e.getMessage());
+            } catch (RuntimeException e) {
+                // a batch that could not be applied must not end the events, which fall back to the long polling
+                this.userInterface.displayError("The membership events could not be applied: " + e);
+            } finally {
+                channel.close();
+            }
+            // resume from the last received position
+            if (token.equals(this.token))
+                this.startLongPolling();
+        }, "event-stream");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * Start the long polling to fetch newly registered users.
+     * Get the address of the event stream, published next to the SOAP service of the signaling server.
+     * @return the address of the event stream
      */
-    private void startLongPollingRegistration() {
-        AsyncHandler<TakeNewUserRegistrationResponse> handler = new AsyncHandler<TakeNewUserRegistrationResponse>() {
+    private String getEventStreamAddress() {
+        String address = (String) ((BindingProvider) this.signaling).getRequestContext()
+                .get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
+        return URI.create(address).resolve("events").toString();
+    }
+
+    /**
+     * Start the long polling to fetch the registrations and deregistrations of the other users.
+     */
+    private void startLongPolling() {
+        String token = this.token;
+        AsyncHandler<TakeMembershipEventsResponse> handler = new AsyncHandler<TakeMembershipEventsResponse>() {
             @Override
-            public void handleResponse(Response<TakeNewUserRegistrationResponse> response) {
+            public void handleResponse(Response<TakeMembershipEventsResponse> response) {
+                // the polling of a lost registration is left once the user has registered again
+                if (!token.equals(PeerExpressApp.this.token))
+                    return;
                 try {
-                    User user = response.get().getReturn();
-                    UserInfo info = new UserInfo(user, null, null);
-                    usersInfo.put(user.getUsername(), info);
-                    userInterface.notifyNewUserRegistration(user.getUsername(), user.getHost(), user.getPort());
-                    signaling.takeNewUserRegistrationAsync(username, token, this);
-                } catch (InterruptedException | ExecutionException e) {
+                    applyMembershipBatch(response.get().getReturn());
+                    signaling.takeMembershipEventsAsync(username, token, eventSequence, POLL_BATCH_SIZE,
+                            POLL_TIMEOUT, this);
+                } catch (InterruptedException e) {
                     userInterface.displayError(e.getMessage());
+                } catch (ExecutionException e) {
+                    recoverEventStream(e.getCause());
+                } catch (WebServiceException e) {
+                    // the next poll could not be sent
+                    recoverEventStream(e);
+                } catch (RuntimeException e) {
+                    // a batch that could not be applied must not end the polling, which is started again
+                    userInterface.displayError("The membership events could not be applied: " + e);
+                    recovery.schedule(PeerExpressApp.this::restartEventStream, RETRY_DELAY, TimeUnit.MILLISECONDS);
                 }
             }
         };
-        this.signaling.takeNewUserRegistrationAsync(this.username, this.token, handler);
+        this.signaling.takeMembershipEventsAsync(this.username, token, this.eventSequence,
+                POLL_BATCH_SIZE, POLL_TIMEOUT, handler);
     }
 
     /**
-     * Start the long polling to fetch deregistered users.
+     * Restart receiving the membership events after the long polling failed: from another
+     * replica if the current one cannot be reached, or after synchronizing the directory
+     * again if the replica no longer has the events following the known position.
+     * @param cause the cause of the failure
      */
-    private void startLongPollingDeregistration() {
-        AsyncHandler<TakeNewUserDeregistrationResponse> handler = new AsyncHandler<TakeNewUserDeregistrationResponse>() {
-            @Override
-            public void handleResponse(Response<TakeNewUserDeregistrationResponse> response) {
+    private void recoverEventStream(Throwable cause) {
+        if (cause instanceof PeerExpressSignalingHTTP_Exception
+                && ((PeerExpressSignalingHTTP_Exception) cause).getFaultInfo().getHttpCode() == 410) {
+            try {
+                this.initializeDirectory();
+                this.startEventStream();
+                return;
+            } catch (PeerExpressSignalingHTTP_Exception | WebServiceException e) {
+                this.failover();
+            }
+        } else if (isOverloaded(cause)) {
+            // the replica is available but busy, retrying on another one would spread its load
+            long delay = backoff(1, ((PeerExpressSignalingHTTP_Exception) cause).getFaultInfo().getRetryAfter());
+            this.recovery.schedule(this::restartEventStream, delay, TimeUnit.MILLISECONDS);
+            return;
+        } else if (cause instanceof PeerExpressSignalingHTTP_Exception
+                && ((PeerExpressSignalingHTTP_Exception) cause).getFaultInfo().getHttpCode() == 404) {
+            // the lease has expired, registering again restarts the events
+            this.recovery.execute(this::registerAgain);
+            return;
+        } else if (cause instanceof WebServiceException) {
+            this.failover();
+        } else {
+            this.userInterface.displayError(cause.getMessage());
+            return;
+        }
+        this.recovery.schedule(this::restartEventStream, RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Restart receiving the membership events, on another replica of the signaling service
+     * if the current one could not be reached.
+     */
+    private void restartEventStream() {
+        try {
+            // the roster is only known by the replica on which it was set
+            if (!this.roster.isEmpty())
+                this.initializeDirectory();
+            this.startEventStream();
+        } catch (PeerExpressSignalingHTTP_Exception | WebServiceException e) {
+            this.recoverEventStream(e);
+        }
+    }
+
+    /**
+     * Send a request to the signaling server, and send it again while the server is overloaded,
+     * after the time given by the server plus a random delay growing with the attempts, so that
+     * the clients rejected at the same time do not come back at the same time.
+     * @param request the request
+     * @param <T> the type of the result of the request
+     * @return the result of the request
+     * @throws PeerExpressSignalingHTTP_Exception if the request was rejected, or the server is
+     * still overloaded after several attempts
+     */
+    private static <T> T withBackoff(SignalingRequest<T> request) throws PeerExpressSignalingHTTP_Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return request.send();
+            } catch (PeerExpressSignalingHTTP_Exception e) {
+                if (!isOverloaded(e) || attempt >= MAX_ATTEMPTS)
+                    throw e;
                 try {
-                    User user = response.get().getReturn();
-                    usersInfo.remove(user.getUsername());
-                    userInterface.notifyNewUserDeregistration(user.getUsername());
-                    signaling.takeNewUserDeregistrationAsync(username, token, this);
-                } catch (InterruptedException | ExecutionException e) {
-                    userInterface.displayError(e.getMessage());
+                    Thread.sleep(backoff(attempt, e.getFaultInfo().getRetryAfter()));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
                 }
             }
-        };
-        this.signaling.takeNewUserDeregistrationAsync(this.username, this.token, handler);
+        }
+    }
+
+    /**
+     * Tell if a request failed because the signaling server is overloaded.
+     * @param cause the cause of the failure
+     * @return true if and only if the server rejected the request with a 503 error
+     */
+    private static boolean isOverloaded(Throwable cause) {
+        return cause instanceof PeerExpressSignalingHTTP_Exception
+                && ((PeerExpressSignalingHTTP_Exception) cause).getFaultInfo().getHttpCode() == 503;
+    }
+
+    /**
+     * Get the time to wait before retrying a request rejected by an overloaded server.
+     * @param attempt the number of times the request has been sent
+     * @param retryAfter the time in milliseconds after which the server told to retry, or 0 if unknown
+     * @return the time to wait in milliseconds, the time given by the server plus a random delay
+     * up to an exponentially growing bound
+     */
+    private static long backoff(int attempt, long retryAfter) {
+        long bound = Math.min(MAX_BACKOFF, RETRY_DELAY << Math.min(attempt, 16));
+        return retryAfter + ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Apply a batch of membership events, and move forward the position in the membership log.
+     * @param batch the batch of membership events
+     */
+    private void applyMembershipBatch(MembershipBatch batch) {
+        for (MembershipEvent event : batch.getEvents())
+            this.applyMembershipEvent(event);
+        this.eventSequence = batch.getSequence();
+    }
+
+    /**
+     * Update the info on the other users with a membership event, and notify the user interface.
+     * @param event the membership event
+     */
+    private void applyMembershipEvent(MembershipEvent event) {
+        User user = event.getUser();
+        switch (event.getType()) {
+            case JOINED:
+                this.usersInfo.put(user.getUsername(), new UserInfo(user));
+                if (this.contacts.isFrequent(user.getUsername()))
+                    this.prewarm(user.getUsername());
+                this.userInterface.notifyNewUserRegistration(user.getUsername(), user.getHost(), user.getPort());
+                break;
+            case LEFT:
+                this.releaseUser(user.getUsername(), this.usersInfo.remove(user.getUsername()));
+                this.userInterface.notifyNewUserDeregistration(user.getUsername());
+                break;
+            case UPDATED:
+                // the user may have changed its host and port, so the previous session is dropped
+                this.releaseUser(user.getUsername(), this.usersInfo.put(user.getUsername(), new UserInfo(user)));
+                if (this.contacts.isFrequent(user.getUsername()))
+                    this.prewarm(user.getUsername());
+                this.userInterface.notifyNewUserDeregistration(user.getUsername());
+                this.userInterface.notifyNewUserRegistration(user.getUsername(), user.getHost(), user.getPort());
+                break;
+        }
+    }
+
+    /**
+     * A request sent to a signaling server.
+     * @param <T> the type of the result of the request
+     */
+    private interface SignalingRequest<T> {
+
+        /**
+         * Send the request.
+         * @return the result of the request
+         * @throws PeerExpressSignalingHTTP_Exception if the server rejected the request
+         */
+        T send() throws PeerExpressSignalingHTTP_Exception;
+
+    }
+
+    /**
+     * The info on a user resolved outside the roster, and the time until which it is trusted.
+     */
+    private static class ResolvedUser {
+
+        /**
+         * the info on the user
+         */
+        private final UserInfo info;
+
+        /**
+         * the time in milliseconds after which the user is resolved again
+         */
+        private final long expiry;
+
+        /**
+         * Constructor.
+         * @param info the info on the user
+         * @param expiry the time in milliseconds after which the user is resolved again
+         */
+        private ResolvedUser(UserInfo info, long expiry) {
+            this.info = info;
+            this.expiry = expiry;
+        }
+
     }
 
 }
@@ -0,0 +1,121 @@
+package fr.ensibs.peerExpress;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A long-lived HTTP connection to the event stream of the signaling server,
+ * receiving the membership events as soon as they happen in a compact framing
+ * rather than through repeated SOAP long polling requests.
+ */
+public class PushChannel implements Closeable {
+
+    /**
+     * the time in milliseconds without any frame after which the connection is considered lost,
+     * more than the heartbeat period of the server
+     */
+    private static final int READ_TIMEOUT = 60000;
+
+    /**
+     * the connection to the event stream
+     */
+    private final HttpURLConnection connection;
+
+    /**
+     * the reader of the frames of the stream
+     */
+    private final BufferedReader reader;
+
+    /**
+     * Constructor. Open the event stream of a user.
+     * @param address the address of the event stream
+     * @param username the username of the user in the community
+     * @param token the registration token of the user
+     * @param after the sequence number up to which the user has read the membership log
+     * @throws IOException if the event stream is not available
+     */
+    public PushChannel(String address, String username, String token, long after) throws IOException {
+        URL url = new URL(address + "?username=" + URLEncoder.encode(username, "UTF-8")
+                + "&token=" + URLEncoder.encode(token, "UTF-8") + "&after=" + after);
+        this.connection = (HttpURLConnection) url.openConnection();
+        this.connection.setReadTimeout(READ_TIMEOUT);
+        if (this.connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            this.connection.disconnect();
+            throw new IOException("The event stream is not available: HTTP " + this.connection.getResponseCode());
+        }
+        this.reader = new BufferedReader(new InputStreamReader(this.connection.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Block until the next batch of events is received, which ends with the
+     * position of the stream in the membership log.
+     * @return the next batch of events, or null if the stream has ended
+     * @throws IOException if the connection has been lost or a frame is malformed
+     */
+    public MembershipBatch readBatch() throws IOException {
+        MembershipBatch batch = new MembershipBatch();
+        String line;
+        while ((line = this.reader.readLine()) != null) {
+            String[] fields = line.split(" ");
+            try {
+                long sequence = Long.parseLong(fields[1]);
+                switch (fields[0]) {
+                    case "J":
+                        batch.getEvents().add(newEvent(sequence, MembershipEventType.JOINED, fields));
+                        break;
+                    case "U":
+                        batch.getEvents().add(newEvent(sequence, MembershipEventType.UPDATED, fields));
+                        break;
+                    case "L":
+                        batch.getEvents().add(newEvent(sequence, MembershipEventType.LEFT, fields));
+                        break;
+                    case "S":
+                        batch.setSequence(sequence);
+                        return batch;
+                    default:
+                        throw new IOException("Unknown frame: " + line);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new IOException("Malformed frame: " + line);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        this.connection.disconnect();
+    }
+
+    /**
+     * Create a membership event from the fields of a frame.
+     * @param sequence the sequence number of the event
+     * @param type the type of the event
+     * @param fields the fields of the frame
+     * @return the membership event
+     * @throws IOException if a field cannot be decoded
+     */
+    private static MembershipEvent newEvent(long sequence, MembershipEventType type, String[] fields)
+            throws IOException {
+        User user = new User();
+        user.setUsername(URLDecoder.decode(fields[2], "UTF-8"));
+        if (type != MembershipEventType.LEFT) {
+            user.setHost(URLDecoder.decode(fields[3], "UTF-8"));
+            user.setPort(Integer.parseInt(fields[4]));
+        }
+
+        MembershipEvent event = new MembershipEvent();
+        event.setSequence(sequence);
+        event.setType(type);
+        event.setUser(user);
+        return event;
+    }
+
+}
@@ -51,6 +51,10 @@ public class ConsoleUserInterface implements UserInterface {
                 case "USERS":
                     this.app.showUsers();
                     break;
+                case "search":
+                case "SEARCH":
+                    this.app.searchUsers(tokens.length >= 2 ? tokens[1] : "");
+                    break;
                 case "help":
                 case "HELP":
                     this.showCommands();
@@ -80,6 +84,11 @@ public class ConsoleUserInterface implements UserInterface {
         System.out.println('[' + sender + "]: " + content);
     }
 
+    @Override
+    public void notifyMessageSent(String recipient, String content) {
+        System.out.println("Message sent to [" + recipient + "].");
+    }
+
     @Override
     public void notifyNewUserRegistration(String username, String host, int port) {
         System.out.println('[' + username + "] logged in.");
@@ -102,6 +111,7 @@ public class ConsoleUserInterface implements UserInterface {
         System.out.println("Hello, " + this.app.getUsername() + ". Enter commands:"
                 + "\n QUIT                       to quit the application"
                 + "\n USERS                      to display the list of registered users"
+                + "\n SEARCH <prefix>            to search the registered users whose username starts with prefix"
                 + "\n SEND <username> <message>  to send a message to an user"
                 + "\n HELP                       to show these commands again");
     }
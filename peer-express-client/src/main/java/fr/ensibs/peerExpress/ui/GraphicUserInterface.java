@@ -112,6 +112,12 @@ public class GraphicUserInterface extends JFrame implements UserInterface {
             this.addMessageLabel(sender, content);
     }
 
+    @Override
+    public void notifyMessageSent(String recipient, String content) {
+        // the message is already shown, and the notification comes from a sending thread
+        SwingUtilities.invokeLater(() -> this.errorDisplay.setText("Message sent to " + recipient + "."));
+    }
+
     @Override
     public void notifyNewUserRegistration(String username, String host, int port) {
         Object[] row = {username, host, port};
@@ -120,9 +126,12 @@ public class GraphicUserInterface extends JFrame implements UserInterface {
 
     @Override
     public void notifyNewUserDeregistration(String username) {
-        int row = 0;
-        while (!this.registeredUsersModel.getValueAt(row, 0).equals(username)) row++;
-        this.registeredUsersModel.removeRow(row);
+        for (int row = 0; row < this.registeredUsersModel.getRowCount(); row++) {
+            if (this.registeredUsersModel.getValueAt(row, 0).equals(username)) {
+                this.registeredUsersModel.removeRow(row);
+                return;
+            }
+        }
     }
 
     @Override
@@ -27,6 +27,13 @@ public interface UserInterface {
      */
     void notifyMessageReceived(String sender, String content);
 
+    /**
+     * Notify on the interface that a message has been sent, the messages being sent in the background.
+     * @param recipient the username of the recipient of the message
+     * @param content the content of the message
+     */
+    void notifyMessageSent(String recipient, String content);
+
     /**
      * Notify on the interface that a new user has been registered.
      * @param username the username of the new user
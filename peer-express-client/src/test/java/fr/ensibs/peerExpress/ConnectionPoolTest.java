@@ -0,0 +1,292 @@
+package fr.ensibs.peerExpress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the single-flight opening of the sessions of the pool by concurrent senders.
+ */
+public class ConnectionPoolTest {
+
+    /**
+     * the number of senders sending messages at the same time
+     */
+    private static final int SENDERS = 16;
+
+    /**
+     * the time in milliseconds taken to connect to a JORAM server
+     */
+    private static final long CONNECTION_DELAY = 200;
+
+    /**
+     * the number of connections created to each JORAM server, identified by its host and port
+     */
+    private final Map<String, AtomicInteger> connections = new ConcurrentHashMap<>();
+
+    /**
+     * the number of sessions created
+     */
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * the host and port of the JORAM server of each session created
+     */
+    private final Map<Session, String> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * the number of connections that fail before the next one is created
+     */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * the number of attempts to connect to a JORAM server
+     */
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    /**
+     * the pool under test
+     */
+    private ConnectionPool pool;
+
+    /**
+     * the threads of the senders
+     */
+    private ExecutorService senders;
+
+    /**
+     * Create the pool, with fake JORAM servers slow to connect to, and the threads of the senders.
+     */
+    @Before
+    public void setUp() {
+        this.pool = new ConnectionPool(new ConnectionPool.Opener() {
+            @Override
+            public Connection createConnection(String host, int port) throws JMSException {
+                try {
+                    Thread.sleep(CONNECTION_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                attempts.incrementAndGet();
+                if (failures.getAndDecrement() > 0)
+                    throw new JMSException("The JORAM server cannot be reached");
+                connections.computeIfAbsent(host + ":" + port, key -> new AtomicInteger()).incrementAndGet();
+                return newConnection(host + ":" + port);
+            }
+
+            @Override
+            public Destination getDestination(String host, int port) {
+                return fake(Destination.class, null);
+            }
+        }, 64, 300000);
+        this.senders = Executors.newFixedThreadPool(SENDERS);
+    }
+
+    /**
+     * Close the pool and stop the threads of the senders.
+     */
+    @After
+    public void tearDown() {
+        this.senders.shutdownNow();
+        this.pool.close();
+    }
+
+    /**
+     * Send messages to the same user from many senders at once: a single session is opened, on a
+     * single connection, and shared by all the senders.
+     */
+    @Test
+    public void concurrentSendersToAUserOpenASingleSession() throws Exception {
+        List<Session> used = this.sendConcurrently(i -> "bob", "host", 1000);
+        assertEquals(1, this.connections.get("host:1000").get());
+        assertEquals(1, this.sessions.get());
+        for (Session session : used)
+            assertEquals(used.get(0), session);
+    }
+
+    /**
+     * Send messages to many users of a JORAM server already connected to, at once: each user gets its
+     * own session, and the sessions share the connection.
+     */
+    @Test
+    public void sessionsToTheSameServerShareTheConnection() throws Exception {
+        this.sendTo("alice", "host", 1000);
+        this.sendConcurrently(i -> "user-" + i, "host", 1000);
+        assertEquals(1, this.connections.get("host:1000").get());
+        assertEquals(SENDERS + 1, this.sessions.get());
+    }
+
+    /**
+     * Send messages to a user whose JORAM server cannot be reached: the failure of the single opening
+     * is reported to all the senders waiting for it, and the next message opens the session again.
+     */
+    @Test
+    public void failedOpeningIsReportedToTheWaitingSenders() throws Exception {
+        this.failures.set(1);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            futures.add(this.senders.submit(() -> {
+                start.await();
+                this.pool.send("bob", "host", 1000, (session, producer) -> { });
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+                fail("The message has been sent to an unreachable JORAM server");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof JMSException);
+            }
+        }
+        assertEquals(1, this.attempts.get());
+
+        this.pool.send("bob", "host", 1000, (session, producer) -> { });
+        assertEquals(1, this.connections.get("host:1000").get());
+    }
+
+    /**
+     * Send a message to a user at its new JORAM server while the session to its previous server is
+     * being opened: the sender waiting for this session does not use it, and opens another one.
+     */
+    @Test
+    public void waitingSenderDoesNotGetTheSessionOfAPreviousServer() throws Exception {
+        Future<Session> previous = this.senders.submit(() -> this.sendTo("bob", "old", 1000));
+        Thread.sleep(CONNECTION_DELAY / 4);
+        Future<Session> current = this.senders.submit(() -> this.sendTo("bob", "new", 1000));
+
+        assertEquals("old:1000", this.addresses.get(previous.get()));
+        assertEquals("new:1000", this.addresses.get(current.get()));
+        assertEquals(1, this.connections.get("new:1000").get());
+    }
+
+    /**
+     * Send a message from each sender at once.
+     * @param recipients the username of the recipient of each sender
+     * @param host the host of the JORAM server of the recipients
+     * @param port the port of the JORAM server of the recipients
+     * @return the sessions used by the senders
+     */
+    private List<Session> sendConcurrently(Recipients recipients, String host, int port) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Session>> futures = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            String recipient = recipients.get(i);
+            Callable<Session> sender = () -> {
+                start.await();
+                return this.sendTo(recipient, host, port);
+            };
+            futures.add(this.senders.submit(sender));
+        }
+        start.countDown();
+        List<Session> used = new ArrayList<>();
+        for (Future<Session> future : futures)
+            used.add(future.get());
+        return used;
+    }
+
+    /**
+     * Send a message to a user.
+     * @param recipient the username of the recipient
+     * @param host the host of the JORAM server of the recipient
+     * @param port the port of the JORAM server of the recipient
+     * @return the session used to send the message
+     */
+    private Session sendTo(String recipient, String host, int port) throws Exception {
+        Session[] used = new Session[1];
+        this.pool.send(recipient, host, port, (session, producer) -> used[0] = session);
+        return used[0];
+    }
+
+    /**
+     * Create a fake connection to a JORAM server, whose sessions are counted.
+     * @param address the host and port of the JORAM server
+     * @return the connection
+     */
+    private Connection newConnection(String address) {
+        return fake(Connection.class, method -> {
+            if (!method.equals("createSession"))
+                return null;
+            this.sessions.incrementAndGet();
+            Session session = fake(Session.class, name -> name.equals("createProducer")
+                    ? fake(MessageProducer.class, null) : null);
+            this.addresses.put(session, address);
+            return session;
+        });
+    }
+
+    /**
+     * Create a fake implementation of a JMS interface.
+     * @param type the interface
+     * @param results the result of each method, identified by its name, or null if all return nothing
+     * @param <T> the type of the interface
+     * @return the fake implementation, equal only to itself
+     */
+    private static <T> T fake(Class<T> type, Results results) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName();
+                default:
+                    return results != null ? results.get(method.getName()) : null;
+            }
+        }));
+    }
+
+    /**
+     * The username of the recipient of each sender.
+     */
+    private interface Recipients {
+
+        /**
+         * Get the username of the recipient of a sender.
+         * @param sender the index of the sender
+         * @return the username of the recipient
+         */
+        String get(int sender);
+
+    }
+
+    /**
+     * The results of the methods of a fake implementation.
+     */
+    private interface Results {
+
+        /**
+         * Get the result of a method.
+         * @param method the name of the method
+         * @return the result of the method
+         */
+        Object get(String method);
+
+    }
+
+}
@@ -0,0 +1,163 @@
+package fr.ensibs.peerExpress;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The admission control of the requests of the signaling service, which keeps the server
+ * working at a steady throughput when many users register at once, e.g. when the server
+ * restarts. A request is admitted if a token bucket refilled at a fixed rate holds enough
+ * tokens, then runs when one of a bounded number of slots is free, waiting for a short
+ * time in a bounded queue otherwise. A rejected request fails right away with a 503 error,
+ * telling the user when to retry. The rejected users are given successive retry times
+ * spread at the rate of the bucket, so that they do not all come back at once.
+ */
+public class AdmissionControl {
+
+    /**
+     * the time in milliseconds during which a request waits for a free slot
+     */
+    private static final long QUEUE_TIMEOUT = 1000;
+
+    /**
+     * the maximum time in milliseconds after which a rejected user is told to retry
+     */
+    private static final long MAX_RETRY_AFTER = 60000;
+
+    /**
+     * the number of tokens added to the bucket per nanosecond
+     */
+    private final double rate;
+
+    /**
+     * the maximum number of tokens of the bucket, i.e. of requests admitted in a burst
+     */
+    private final double burst;
+
+    /**
+     * the slots of the requests running at the same time
+     */
+    private final Semaphore slots;
+
+    /**
+     * the maximum number of requests waiting for a slot
+     */
+    private final int maxQueued;
+
+    /**
+     * the number of requests waiting for a slot
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * the number of rejected requests
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * the number of tokens of the bucket at the time of the last refill
+     */
+    private double tokens;
+
+    /**
+     * the time in nanoseconds of the last refill of the bucket
+     */
+    private long refilled;
+
+    /**
+     * the time in nanoseconds until which the retry times have been given to rejected users
+     */
+    private long horizon;
+
+    /**
+     * Constructor.
+     * @param rate the number of requests admitted per second, at least 1
+     * @param maxRequests the maximum number of requests running at the same time, also the
+     *                    maximum number of requests waiting for a slot
+     */
+    public AdmissionControl(int rate, int maxRequests) {
+        this.rate = rate / 1e9;
+        this.burst = Math.max(1, rate);
+        this.slots = new Semaphore(maxRequests);
+        this.maxQueued = maxRequests;
+        this.tokens = this.burst;
+        this.refilled = System.nanoTime();
+        this.horizon = this.refilled;
+    }
+
+    /**
+     * Admit a request, which must be released once done.
+     * @param cost the number of tokens taken by the request, higher for the expensive requests
+     * @throws PeerExpressSignalingHTTP if the server is overloaded, with the time after which to retry
+     */
+    public void acquire(int cost) throws PeerExpressSignalingHTTP {
+        if (!this.take(cost))
+            throw this.reject("Too many requests");
+
+        if (this.slots.tryAcquire())
+            return;
+
+        if (this.queued.incrementAndGet() > this.maxQueued) {
+            this.queued.decrementAndGet();
+            throw this.reject("Too many pending requests");
+        }
+        try {
+            if (!this.slots.tryAcquire(QUEUE_TIMEOUT, TimeUnit.MILLISECONDS))
+                throw this.reject("Too many pending requests");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PeerExpressSignalingHTTP(503, "The request has been interrupted");
+        } finally {
+            this.queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Release the slot of an admitted request.
+     */
+    public void release() {
+        this.slots.release();
+    }
+
+    /**
+     * Create the error of a rejected request, telling the user to retry at the next time
+     * not yet given to another rejected user.
+     * @param message the message of the error
+     * @return the error, whose HTTP status code is 503
+     */
+    public synchronized PeerExpressSignalingHTTP reject(String message) {
+        this.rejected.increment();
+        long now = System.nanoTime();
+        long limit = now + TimeUnit.MILLISECONDS.toNanos(MAX_RETRY_AFTER);
+        this.horizon = Math.min(Math.max(this.horizon, now) + (long) (1 / this.rate), limit);
+        return new PeerExpressSignalingHTTP(503, message,
+                Math.max(1, TimeUnit.NANOSECONDS.toMillis(this.horizon - now)));
+    }
+
+    /**
+     * Get the number of requests rejected so far.
+     * @return the number of rejected requests
+     */
+    public long getRejected() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * Take tokens from the bucket, after adding those earned since the last refill.
+     * @param cost the number of tokens to take, at most the size of the bucket
+     * @return true if the bucket held enough tokens, false otherwise
+     */
+    private synchronized boolean take(int cost) {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.burst, this.tokens + (now - this.refilled) * this.rate);
+        this.refilled = now;
+        double taken = Math.min(cost, this.burst);
+        if (this.tokens < taken)
+            return false;
+        this.tokens -= taken;
+        return true;
+    }
+
+}
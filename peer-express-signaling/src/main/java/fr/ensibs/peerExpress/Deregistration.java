@@ -0,0 +1,54 @@
+package fr.ensibs.peerExpress;
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Represents the deregistration of a user in a batch of deregistrations.
+ */
+public class Deregistration {
+
+    /**
+     * the username of the user in the community
+     */
+    @XmlElement
+    private String username;
+
+    /**
+     * the registration token of the user
+     */
+    @XmlElement
+    private String token;
+
+    /**
+     * Constructor, used when the deregistration is received.
+     */
+    public Deregistration() {
+    }
+
+    /**
+     * Constructor.
+     * @param username the username of the user in the community
+     * @param token the registration token of the user
+     */
+    public Deregistration(String username, String token) {
+        this.username = username;
+        this.token = token;
+    }
+
+    /**
+     * Get the username of the user.
+     * @return the username of the user
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Get the registration token of the user.
+     * @return the registration token
+     */
+    public String getToken() {
+        return token;
+    }
+
+}
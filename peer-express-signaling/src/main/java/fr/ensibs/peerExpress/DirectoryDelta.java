@@ -0,0 +1,99 @@
+package fr.ensibs.peerExpress;
+
+import javax.xml.bind.annotation.XmlElement;
+import java.util.List;
+
+/**
+ * Represents the changes of the user directory of the signaling server since a
+ * given version, or a page of the full directory if these changes are no longer known.
+ */
+public class DirectoryDelta {
+
+    /**
+     * the version of the directory the changes lead to
+     */
+    @XmlElement
+    private long version;
+
+    /**
+     * true if this is a page of the full directory rather than a list of changes
+     */
+    @XmlElement
+    private boolean snapshot;
+
+    /**
+     * the users that have been added to the directory, ordered by username for a snapshot
+     */
+    @XmlElement
+    private List<User> added;
+
+    /**
+     * the usernames of the users that have been removed from the directory
+     */
+    @XmlElement
+    private List<String> removed;
+
+    /**
+     * true if there is nothing left to fetch after these changes or this page
+     */
+    @XmlElement
+    private boolean complete;
+
+    /**
+     * Constructor.
+     * @param version the version of the directory the changes lead to
+     * @param snapshot true if this is a page of the full directory
+     * @param added the users that have been added to the directory
+     * @param removed the usernames of the users that have been removed from the directory
+     * @param complete true if there is nothing left to fetch
+     */
+    public DirectoryDelta(long version, boolean snapshot, List<User> added, List<String> removed,
+                          boolean complete) {
+        this.version = version;
+        this.snapshot = snapshot;
+        this.added = added;
+        this.removed = removed;
+        this.complete = complete;
+    }
+
+    /**
+     * Get the version of the directory the changes lead to.
+     * @return the version of the directory
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Tell if this is a page of the full directory rather than a list of changes.
+     * @return true if and only if this is a page of the full directory
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the users that have been added to the directory.
+     * @return the added users
+     */
+    public List<User> getAdded() {
+        return added;
+    }
+
+    /**
+     * Get the usernames of the users that have been removed from the directory.
+     * @return the usernames of the removed users
+     */
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Tell if there is nothing left to fetch after these changes or this page.
+     * @return true if and only if there is nothing left to fetch
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+}
@@ -0,0 +1,565 @@
+package fr.ensibs.peerExpress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal making the directory of the signaling server survive
+ * restarts. The registrations and deregistrations are appended to a journal file
+ * by a single writer thread, which flushes all the records appended during the
+ * previous flush at once (group commit), so that the cost of a flush is shared
+ * by the concurrent requests. Once enough records have been written, a compact
+ * snapshot of the directory is taken and the journal is restarted from it.
+ * <p>
+ * A record of the journal is its length, its content and its CRC32, so that a
+ * record torn by a crash is detected and discarded on recovery. The changes of a
+ * batch request are written as one record, so that they are recovered all or none.
+ * <p>
+ * The records are appended after the sequence numbers of their changes are taken,
+ * so two changes of the same user may be written in the reverse order, e.g. the
+ * expiration of a lease and the registration that follows it. The recovery thus
+ * applies the change of a user with the highest sequence number, whatever its
+ * position in the files.
+ */
+public class DirectoryJournal implements Closeable {
+
+    /**
+     * the number of journal records after which a snapshot is taken
+     */
+    private static final int SNAPSHOT_INTERVAL = 100000;
+
+    /**
+     * the type of the records of the registrations
+     */
+    private static final byte REGISTRATION = 'J';
+
+    /**
+     * the type of the records of the deregistrations
+     */
+    private static final byte DEREGISTRATION = 'L';
+
+    /**
+     * the type of the records of the batches of registrations or deregistrations
+     */
+    private static final byte BATCH = 'B';
+
+    /**
+     * the maximum size in bytes of a record, above which the length of a record is considered torn
+     */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * the last snapshot of the directory
+     */
+    private final File snapshotFile;
+
+    /**
+     * the journal of the changes since the last snapshot
+     */
+    private final File journalFile;
+
+    /**
+     * the journal of the changes since the previous snapshot, while the last one is being taken
+     */
+    private final File oldJournalFile;
+
+    /**
+     * the lock guarding the pending records and the commit counters
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * the condition signaled when records are appended or the journal is closed
+     */
+    private final Condition appended = this.lock.newCondition();
+
+    /**
+     * the condition signaled when records have been flushed
+     */
+    private final Condition flushed = this.lock.newCondition();
+
+    /**
+     * the records appended since the last flush
+     */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /**
+     * the number of records appended since the journal was opened
+     */
+    private long appendedCount;
+
+    /**
+     * the number of records flushed since the journal was opened
+     */
+    private long flushedCount;
+
+    /**
+     * the error that stopped the writer thread, if any
+     */
+    private IOException failure;
+
+    /**
+     * true if the journal has been closed
+     */
+    private boolean closed;
+
+    /**
+     * true once the writer thread has stopped, no record being written anymore
+     */
+    private boolean stopped;
+
+    /**
+     * the channel of the journal file, only used by the writer thread
+     */
+    private FileChannel channel;
+
+    /**
+     * the number of records written to the journal file since the last snapshot
+     */
+    private long recordsSinceSnapshot;
+
+    /**
+     * the thread taking the snapshots, if one is running
+     */
+    private Thread snapshotThread;
+
+    /**
+     * the provider of the current version of the directory
+     */
+    private LongSupplier version;
+
+    /**
+     * the provider of the current users of the directory
+     */
+    private Supplier<Collection<User>> users;
+
+    /**
+     * the thread writing the records to the journal file
+     */
+    private final Thread writer = new Thread(this::write, "directory-journal");
+
+    /**
+     * Constructor.
+     * @param directory the directory containing the snapshot and journal files, created if needed
+     * @throws IOException if the directory cannot be created
+     */
+    public DirectoryJournal(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("The data directory cannot be created: " + directory);
+        this.snapshotFile = new File(directory, "snapshot");
+        this.journalFile = new File(directory, "journal");
+        this.oldJournalFile = new File(directory, "journal.old");
+    }
+
+    /**
+     * Read the last snapshot and replay the journal files. If the store was saved at a
+     * version at least as recent as the snapshot, only the newer records are replayed.
+     * @param directory the store to fill with the recovered users, possibly reopened at a given version
+     * @return the version of the recovered directory, i.e. the last sequence number of the membership log
+     * @throws IOException if the files cannot be read
+     */
+    public long recover(DirectoryStore directory) throws IOException {
+        long after = directory.getVersion();
+        long version = Math.max(after, 0);
+        if (this.snapshotFile.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.snapshotFile)))) {
+                long snapshotVersion = input.readLong();
+                if (snapshotVersion > after) {
+                    directory.clear();
+                    after = snapshotVersion;
+                    version = snapshotVersion;
+                    while (input.readBoolean())
+                        directory.put(new User(input.readUTF(), input.readUTF(), input.readInt(), input.readUTF()));
+                }
+            }
+        }
+
+        // the records are not written in the order of the changes, so the last applied change of each user is kept
+        Map<String, Long> applied = new HashMap<>();
+        for (File file : new File[]{this.oldJournalFile, this.journalFile}) {
+            if (!file.exists())
+                continue;
+
+            long valid = 0;
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+                DataInputStream input = new DataInputStream(stream);
+                byte[] record;
+                while ((record = readRecord(input)) != null) {
+                    version = Math.max(version, replay(record, directory, after, applied));
+                    valid += record.length + 8;
+                }
+            }
+
+            // discard a record torn by a crash, so that the next records are not appended after it
+            try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+                journal.setLength(valid);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Start writing the journal, after the recovery. A snapshot of the recovered directory
+     * is taken first, so that the next recovery does not replay the same records again.
+     * @param version the provider of the current version of the directory
+     * @param users the provider of the current users of the directory
+     * @throws IOException if the snapshot cannot be written or the journal cannot be opened
+     */
+    public void open(LongSupplier version, Supplier<Collection<User>> users) throws IOException {
+        this.version = version;
+        this.users = users;
+        this.writeSnapshot();
+        Files.deleteIfExists(this.oldJournalFile.toPath());
+        this.channel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Append the registration of a user to the journal, without waiting for it to be written.
+     * @param sequence the sequence number of the registration in the membership log
+     * @param user the registered user
+     */
+    public void appendRegistration(long sequence, User user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            writeChange(output, REGISTRATION, sequence, user);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.append(bytes.toByteArray());
+    }
+
+    /**
+     * Append the deregistration of a user to the journal, without waiting for it to be written.
+     * The deregistration is only durable once {@link #sync()} has returned.
+     * @param sequence the sequence number of the deregistration in the membership log
+     * @param user the deregistered user
+     */
+    public void appendDeregistration(long sequence, User user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            writeChange(output, DEREGISTRATION, sequence, user);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.append(bytes.toByteArray());
+    }
+
+    /**
+     * Append the registrations or deregistrations of a batch of users to the journal as one
+     * record, without waiting for it to be written.
+     * @param registered true for registrations, false for deregistrations
+     * @param firstSequence the sequence number of the first change in the membership log, the
+     *                      next changes having the next sequence numbers
+     * @param users the registered or deregistered users
+     */
+    public void appendBatch(boolean registered, long firstSequence, List<User> users) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeByte(BATCH);
+            output.writeInt(users.size());
+            for (int i = 0; i < users.size(); i++)
+                writeChange(output, registered ? REGISTRATION : DEREGISTRATION, firstSequence + i, users.get(i));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.append(bytes.toByteArray());
+    }
+
+    /**
+     * Wait until all the records appended so far are written to the disk.
+     * @throws IOException if the journal could not be written, or has been closed before
+     * the records were written
+     */
+    public void sync() throws IOException {
+        this.lock.lock();
+        try {
+            long target = this.appendedCount;
+            while (this.flushedCount < target && this.failure == null && !this.stopped)
+                this.flushed.awaitUninterruptibly();
+            if (this.failure != null)
+                throw this.failure;
+            if (this.flushedCount < target)
+                throw new IOException("The directory journal is closed");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.appended.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add a record to the pending records, framed with its length and CRC32.
+     * @param record the content of the record
+     */
+    private void append(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        this.lock.lock();
+        try {
+            DataOutputStream output = new DataOutputStream(this.pending);
+            output.writeInt(record.length);
+            output.write(record);
+            output.writeInt((int) crc.getValue());
+            this.appendedCount++;
+            this.appended.signal();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Write the pending records to the journal file until the journal is closed.
+     */
+    private void write() {
+        try {
+            while (true) {
+                ByteArrayOutputStream records;
+                long count;
+                this.lock.lock();
+                try {
+                    while (this.pending.size() == 0 && !this.closed)
+                        this.appended.awaitUninterruptibly();
+                    if (this.pending.size() == 0)
+                        break;
+                    records = this.pending;
+                    count = this.appendedCount;
+                    this.pending = new ByteArrayOutputStream();
+                } finally {
+                    this.lock.unlock();
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+                while (buffer.hasRemaining())
+                    this.channel.write(buffer);
+                this.channel.force(false);
+
+                this.lock.lock();
+                try {
+                    this.recordsSinceSnapshot += count - this.flushedCount;
+                    this.flushedCount = count;
+                    this.flushed.signalAll();
+                } finally {
+                    this.lock.unlock();
+                }
+
+                if (this.recordsSinceSnapshot >= SNAPSHOT_INTERVAL
+                        && (this.snapshotThread == null || !this.snapshotThread.isAlive()))
+                    this.startSnapshot();
+            }
+            this.channel.close();
+        } catch (IOException e) {
+            this.lock.lock();
+            try {
+                this.failure = e;
+                this.flushed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+            System.err.println("The directory journal could not be written: " + e.getMessage());
+        } finally {
+            this.lock.lock();
+            try {
+                this.stopped = true;
+                this.flushed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Restart the journal in a new file and take a snapshot in the background. The
+     * records written before the restart all concern changes made before the snapshot
+     * starts, so the previous journal file can be deleted once the snapshot is written.
+     * If the previous journal file is still there, the previous snapshot has failed and
+     * the journal is not restarted, so as not to replace the previous file: the snapshot
+     * is only taken again, and both files are kept until it is written.
+     * @throws IOException if the journal file cannot be restarted
+     */
+    private void startSnapshot() throws IOException {
+        if (!this.oldJournalFile.exists()) {
+            this.channel.close();
+            Files.move(this.journalFile.toPath(), this.oldJournalFile.toPath());
+            this.channel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        }
+        this.recordsSinceSnapshot = 0;
+
+        this.snapshotThread = new Thread(() -> {
+            try {
+                this.writeSnapshot();
+                Files.deleteIfExists(this.oldJournalFile.toPath());
+            } catch (IOException e) {
+                System.err.println("The directory snapshot could not be written: " + e.getMessage());
+            }
+        }, "directory-snapshot");
+        this.snapshotThread.setDaemon(true);
+        this.snapshotThread.start();
+    }
+
+    /**
+     * Write a snapshot of the directory to a temporary file, then replace the last snapshot with it.
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void writeSnapshot() throws IOException {
+        // the version is read first: every change up to it has already been made in the directory
+        long version = this.version.getAsLong();
+        Collection<User> users = this.users.get();
+        File temporary = new File(this.snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+            output.writeLong(version);
+            for (User user : users) {
+                output.writeBoolean(true);
+                output.writeUTF(user.getUsername());
+                output.writeUTF(user.getHost());
+                output.writeInt(user.getPort());
+                output.writeUTF(user.getToken());
+            }
+            output.writeBoolean(false);
+            output.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), this.snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Apply a journal record to the recovered directory.
+     * @param record the content of the record
+     * @param directory the recovered users
+     * @param after the sequence number up to which the changes are already in the directory
+     * @param applied the sequence number of the last change applied to each user, identified by its username
+     * @return the sequence number of the record
+     * @throws IOException if the record is malformed
+     */
+    private static long replay(byte[] record, DirectoryStore directory, long after, Map<String, Long> applied)
+            throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = input.readByte();
+        if (type != BATCH)
+            return replayChange(input, type, directory, after, applied);
+
+        long sequence = 0;
+        int count = input.readInt();
+        for (int i = 0; i < count; i++)
+            sequence = replayChange(input, input.readByte(), directory, after, applied);
+        return sequence;
+    }
+
+    /**
+     * Apply a registration or deregistration to the recovered directory, unless a later change
+     * of the same user has already been applied.
+     * @param input the content of the record, after the type of the change
+     * @param type the type of the change
+     * @param directory the recovered users
+     * @param after the sequence number up to which the changes are already in the directory
+     * @param applied the sequence number of the last change applied to each user, identified by its username
+     * @return the sequence number of the change
+     * @throws IOException if the record is malformed
+     */
+    private static long replayChange(DataInputStream input, byte type, DirectoryStore directory, long after,
+                                     Map<String, Long> applied) throws IOException {
+        long sequence = input.readLong();
+        String username = input.readUTF();
+        User user = type == REGISTRATION ? new User(username, input.readUTF(), input.readInt(), input.readUTF()) : null;
+        if (sequence <= after)
+            return sequence;
+        Long last = applied.get(username);
+        if (last != null && last > sequence)
+            return sequence;
+        applied.put(username, sequence);
+        if (user != null)
+            directory.put(user);
+        else
+            directory.remove(username);
+        return sequence;
+    }
+
+    /**
+     * Write a registration or deregistration.
+     * @param output the content of the record
+     * @param type the type of the change
+     * @param sequence the sequence number of the change in the membership log
+     * @param user the registered or deregistered user
+     * @throws IOException never, the content is written in memory
+     */
+    private static void writeChange(DataOutputStream output, byte type, long sequence, User user) throws IOException {
+        output.writeByte(type);
+        output.writeLong(sequence);
+        output.writeUTF(user.getUsername());
+        if (type == REGISTRATION) {
+            output.writeUTF(user.getHost());
+            output.writeInt(user.getPort());
+            output.writeUTF(user.getToken());
+        }
+    }
+
+    /**
+     * Read the next record of a journal file.
+     * @param input the journal file
+     * @return the content of the record, or null at the end of the file or on a torn record
+     * @throws IOException if the file cannot be read
+     */
+    private static byte[] readRecord(DataInputStream input) throws IOException {
+        try {
+            int length = input.readInt();
+            if (length < 0 || length > MAX_RECORD_SIZE)
+                return null;
+            byte[] record = new byte[length];
+            input.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            return input.readInt() == (int) crc.getValue() ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package fr.ensibs.peerExpress;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * The storage of the registered users of the signaling server, identified by their
+ * username and ordered by username so that they can be read page by page or searched
+ * by prefix. The users returned by a store are not necessarily the instances given to
+ * it, so two users are the same registration if they have the same username and token.
+ */
+public interface DirectoryStore {
+
+    /**
+     * Get a registered user.
+     * @param username the username of the user
+     * @return the user, or null if there is none with this username
+     */
+    User get(String username);
+
+    /**
+     * Tell if a user is registered.
+     * @param username the username of the user
+     * @return true if and only if there is a user with this username
+     */
+    boolean containsKey(String username);
+
+    /**
+     * Add a user unless there is already one with the same username, in one step.
+     * @param user the user
+     * @return the user already registered with the same username, or null if the user has been added
+     */
+    User putIfAbsent(User user);
+
+    /**
+     * Add a user, replacing the one with the same username if any.
+     * @param user the user
+     * @return the replaced user, or null if there was none
+     */
+    User put(User user);
+
+    /**
+     * Remove a registration, unless the user has registered again meanwhile.
+     * @param user the user
+     * @return true if the user was removed, false if there is no user with the same username and token
+     */
+    boolean remove(User user);
+
+    /**
+     * Remove the user with a given username.
+     * @param username the username of the user
+     * @return the removed user, or null if there was none
+     */
+    User remove(String username);
+
+    /**
+     * Get the registered users, ordered by username. The view reflects the changes made
+     * while it is iterated, at least up to the version of the directory read before.
+     * @return a live view of the registered users
+     */
+    Collection<User> values();
+
+    /**
+     * Iterate over the registered users from a given username, ordered by username, with
+     * the same guarantees as the view of all the users.
+     * @param from the username from which the users are returned, or null to start from the first user
+     * @param inclusive true to also return the user with the given username
+     * @return the iterator of the users
+     */
+    Iterator<User> iterator(String from, boolean inclusive);
+
+    /**
+     * Remove every user.
+     */
+    void clear();
+
+    /**
+     * Get the version of the directory held by the store when it was opened, i.e. when it
+     * was last closed, so that the journal only replays the changes made afterwards.
+     * @return the version of the directory, or -1 if the store was empty
+     */
+    long getVersion();
+
+    /**
+     * Close the store, saving its content if it is persistent.
+     * @param version the version of the directory held by the store
+     * @throws IOException if the store could not be saved
+     */
+    void close(long version) throws IOException;
+
+}
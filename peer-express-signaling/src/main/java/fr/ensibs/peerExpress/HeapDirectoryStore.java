@@ -0,0 +1,74 @@
+package fr.ensibs.peerExpress;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A directory store keeping the users as objects on the heap, in a concurrent ordered map.
+ * It is not persistent: the directory is recovered from the journal on each start.
+ */
+public class HeapDirectoryStore implements DirectoryStore {
+
+    /**
+     * the registered users identified by their username
+     */
+    private final ConcurrentNavigableMap<String, User> users = new ConcurrentSkipListMap<>();
+
+    @Override
+    public User get(String username) {
+        return this.users.get(username);
+    }
+
+    @Override
+    public boolean containsKey(String username) {
+        return this.users.containsKey(username);
+    }
+
+    @Override
+    public User putIfAbsent(User user) {
+        return this.users.putIfAbsent(user.getUsername(), user);
+    }
+
+    @Override
+    public User put(User user) {
+        return this.users.put(user.getUsername(), user);
+    }
+
+    @Override
+    public boolean remove(User user) {
+        User current = this.users.get(user.getUsername());
+        return current != null && current.hasSameToken(user) && this.users.remove(user.getUsername(), current);
+    }
+
+    @Override
+    public User remove(String username) {
+        return this.users.remove(username);
+    }
+
+    @Override
+    public Collection<User> values() {
+        return this.users.values();
+    }
+
+    @Override
+    public Iterator<User> iterator(String from, boolean inclusive) {
+        return (from != null ? this.users.tailMap(from, inclusive) : this.users).values().iterator();
+    }
+
+    @Override
+    public void clear() {
+        this.users.clear();
+    }
+
+    @Override
+    public long getVersion() {
+        return -1;
+    }
+
+    @Override
+    public void close(long version) {
+    }
+
+}
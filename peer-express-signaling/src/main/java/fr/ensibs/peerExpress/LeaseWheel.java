@@ -0,0 +1,192 @@
+package fr.ensibs.peerExpress;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * A hashed timer wheel expiring the registration leases of the users. The wheel
+ * has one slot per tick of a lease duration, so that all the leases found in the
+ * slot of the current tick are expired: a tick only costs the number of leases
+ * that actually expire, and granting or renewing a lease costs constant time.
+ * The leases are identified by username, so that the users need not be the same
+ * instances from one renewal to the next, and carry the registration token they were
+ * granted for: a lease left from a previous registration of the same username, or cancelled
+ * by a deregistration, never expires the current registration. A lease is expired under the
+ * lock of the wheel, after checking that it has not been renewed since its slot was reached,
+ * so that a renewal either keeps the user registered or fails.
+ */
+public class LeaseWheel {
+
+    /**
+     * the slots of the wheel, containing the users whose lease expires at the corresponding tick
+     */
+    private final List<Set<String>> slots = new ArrayList<>();
+
+    /**
+     * the lease of each user, identified by its username
+     */
+    private final Map<String, Lease> positions = new HashMap<>();
+
+    /**
+     * the index of the slot of the current tick
+     */
+    private int current;
+
+    /**
+     * the number of ticks of a lease
+     */
+    private final int leaseTicks;
+
+    /**
+     * the action to perform on the users whose lease has expired, given their username and registration token
+     */
+    private final BiConsumer<String, String> expiration;
+
+    /**
+     * the thread advancing the wheel
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lease-wheel");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor.
+     * @param leaseDuration the duration of a lease in milliseconds
+     * @param tickDuration the duration of a tick of the wheel in milliseconds, i.e. the expiration precision
+     * @param expiration the action to perform on the usernames and registration tokens of the users whose
+     * lease has expired
+     */
+    public LeaseWheel(long leaseDuration, long tickDuration, BiConsumer<String, String> expiration) {
+        this.leaseTicks = (int) ((leaseDuration + tickDuration - 1) / tickDuration);
+        for (int i = 0; i <= this.leaseTicks; i++)
+            this.slots.add(new HashSet<>());
+        this.expiration = expiration;
+        this.timer.scheduleAtFixedRate(this::tick, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Grant a new lease to a user, replacing its current lease if any.
+     * @param username the username of the user
+     * @param token the registration token of the user
+     */
+    public synchronized void renew(String username, String token) {
+        Lease previous = this.positions.remove(username);
+        if (previous != null)
+            this.slots.get(previous.slot).remove(username);
+        int slot = (this.current + this.leaseTicks) % this.slots.size();
+        this.slots.get(slot).add(username);
+        this.positions.put(username, new Lease(slot, token));
+    }
+
+    /**
+     * Grant a new lease to a user if it is still valid, atomically with respect to the expirations.
+     * @param username the username of the user
+     * @param token the registration token of the user
+     * @param valid the condition on the username for the lease to be granted, e.g. that the user is still registered
+     * @return true if the lease has been granted, false if the condition did not hold
+     */
+    public synchronized boolean renew(String username, String token, Predicate<String> valid) {
+        if (!valid.test(username))
+            return false;
+        this.renew(username, token);
+        return true;
+    }
+
+    /**
+     * Cancel the lease of a user who has deregistered, unless the lease has been granted
+     * meanwhile to another registration of the same username.
+     * @param username the username of the user
+     * @param token the registration token of the user
+     */
+    public synchronized void cancel(String username, String token) {
+        Lease lease = this.positions.get(username);
+        if (lease != null && lease.token.equals(token)) {
+            this.positions.remove(username);
+            this.slots.get(lease.slot).remove(username);
+        }
+    }
+
+    /**
+     * Get the number of leases currently granted.
+     * @return the number of leases
+     */
+    public synchronized int size() {
+        return this.positions.size();
+    }
+
+    /**
+     * Stop the wheel, no lease expires anymore.
+     */
+    public void close() {
+        this.timer.shutdownNow();
+    }
+
+    /**
+     * Advance the wheel by one tick and expire the leases of the new current slot.
+     */
+    private void tick() {
+        List<String> expired;
+        List<String> tokens = new ArrayList<>();
+        synchronized (this) {
+            this.current = (this.current + 1) % this.slots.size();
+            Set<String> slot = this.slots.get(this.current);
+            expired = new ArrayList<>(slot);
+            slot.clear();
+            for (String username : expired)
+                tokens.add(this.positions.remove(username).token);
+        }
+
+        // the lock is taken for each lease rather than for the whole slot, so that the renewals are interleaved
+        for (int i = 0; i < expired.size(); i++) {
+            String username = expired.get(i);
+            synchronized (this) {
+                if (this.positions.containsKey(username))
+                    continue;
+                try {
+                    this.expiration.accept(username, tokens.get(i));
+                } catch (RuntimeException e) {
+                    System.err.println("The lease of " + username + " could not be expired: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * The lease of a user.
+     */
+    private static class Lease {
+
+        /**
+         * the index of the slot of the tick at which the lease expires
+         */
+        private final int slot;
+
+        /**
+         * the registration token the lease was granted for
+         */
+        private final String token;
+
+        /**
+         * Constructor.
+         * @param slot the index of the slot of the tick at which the lease expires
+         * @param token the registration token the lease was granted for
+         */
+        private Lease(int slot, String token) {
+            this.slot = slot;
+            this.token = token;
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+package fr.ensibs.peerExpress;
+
+import javax.xml.bind.annotation.XmlElement;
+import java.util.List;
+
+/**
+ * Represents a batch of events read from the membership log of the signaling server.
+ */
+public class MembershipBatch {
+
+    /**
+     * the sequence number up to which the log has been read, to give back on the next read
+     */
+    @XmlElement
+    private long sequence;
+
+    /**
+     * the events of the batch, ordered by sequence number
+     */
+    @XmlElement
+    private List<MembershipEvent> events;
+
+    /**
+     * Constructor.
+     * @param sequence the sequence number up to which the log has been read
+     * @param events the events of the batch
+     */
+    public MembershipBatch(long sequence, List<MembershipEvent> events) {
+        this.sequence = sequence;
+        this.events = events;
+    }
+
+    /**
+     * Get the sequence number up to which the log has been read.
+     * @return the sequence number up to which the log has been read
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the events of the batch.
+     * @return the events of the batch
+     */
+    public List<MembershipEvent> getEvents() {
+        return events;
+    }
+
+}
@@ -0,0 +1,90 @@
+package fr.ensibs.peerExpress;
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Represents an entry of the membership event log of the signaling server.
+ */
+public class MembershipEvent {
+
+    /**
+     * the sequence number of the event in the log
+     */
+    @XmlElement
+    private long sequence;
+
+    /**
+     * the type of the event
+     */
+    @XmlElement
+    private MembershipEventType type;
+
+    /**
+     * the user concerned by the event
+     */
+    @XmlElement
+    private User user;
+
+    /**
+     * true if the event happened on this server, false if it was received from another
+     * server; not sent to the clients
+     */
+    private boolean local;
+
+    /**
+     * Constructor of an event that happened on this server.
+     * @param sequence the sequence number of the event in the log
+     * @param type the type of the event
+     * @param user the user concerned by the event
+     */
+    public MembershipEvent(long sequence, MembershipEventType type, User user) {
+        this(sequence, type, user, true);
+    }
+
+    /**
+     * Constructor.
+     * @param sequence the sequence number of the event in the log
+     * @param type the type of the event
+     * @param user the user concerned by the event
+     * @param local true if the event happened on this server, false if it was received from another server
+     */
+    public MembershipEvent(long sequence, MembershipEventType type, User user, boolean local) {
+        this.sequence = sequence;
+        this.type = type;
+        this.user = user;
+        this.local = local;
+    }
+
+    /**
+     * Get the sequence number of the event in the log.
+     * @return the sequence number of the event
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the type of the event.
+     * @return the type of the event
+     */
+    public MembershipEventType getType() {
+        return type;
+    }
+
+    /**
+     * Get the user concerned by the event.
+     * @return the user concerned by the event
+     */
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * Tell if the event happened on this server.
+     * @return true if the event happened on this server, false if it was received from another server
+     */
+    public boolean isLocal() {
+        return local;
+    }
+
+}
@@ -0,0 +1,23 @@
+package fr.ensibs.peerExpress;
+
+/**
+ * The type of a membership event of the signaling server.
+ */
+public enum MembershipEventType {
+
+    /**
+     * a user has registered in the signaling server
+     */
+    JOINED,
+
+    /**
+     * a user has deregistered from the signaling server
+     */
+    LEFT,
+
+    /**
+     * a user has registered again, possibly with another host and port, since the last delivered event
+     */
+    UPDATED
+
+}
@@ -0,0 +1,643 @@
+package fr.ensibs.peerExpress;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only log of the membership events of the signaling server. The log
+ * is shared by all the registered users, each of them only keeping a cursor on
+ * it, so that appending an event costs the same whatever the number of users.
+ * An entry is discarded once every open cursor has moved past it and it is no
+ * longer among the most recent entries.
+ * <p>
+ * A user may restrict its cursor to a roster of users. The events of a user are
+ * then only copied to the inboxes of the cursors subscribed to it, found through
+ * a reverse index, and only wake up their readers.
+ */
+public class MembershipLog {
+
+    /**
+     * the batch returned to a reader that has missed events, which has to synchronize its directory again
+     */
+    public static final MembershipBatch MISSED_EVENTS = new MembershipBatch(-1, Collections.<MembershipEvent>emptyList());
+
+    /**
+     * the minimum number of live entries before the log is compacted
+     */
+    private static final int MIN_COMPACTION_THRESHOLD = 1024;
+
+    /**
+     * the number of most recent entries kept whatever the cursors, to send the
+     * directory changes to the clients that are not registered or reconnect
+     */
+    private static final int HISTORY_SIZE = 10000;
+
+    /**
+     * the lock guarding the log, rather than a monitor so that virtual threads
+     * waiting for events do not pin their carrier thread
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * the condition signaled when an event is appended or a cursor is closed, on which
+     * the readers without a roster wait
+     */
+    private final Condition changed = this.lock.newCondition();
+
+    /**
+     * true if the log has been closed and its readers must not wait anymore
+     */
+    private boolean closed;
+
+    /**
+     * the entries of the log, ordered by sequence number, the first live entry being at index head
+     */
+    private final ArrayList<MembershipEvent> entries = new ArrayList<>();
+
+    /**
+     * the index of the first live entry of the log
+     */
+    private int head;
+
+    /**
+     * the sequence number of the last appended event, only modified while holding the lock
+     */
+    private volatile long lastSequence;
+
+    /**
+     * the sequence number of the last gap entry or reset, before which the events do not
+     * describe all the changes of the directory
+     */
+    private long lastGap = -1;
+
+    /**
+     * the number of live entries from which the log is compacted on the next append
+     */
+    private int compactionThreshold = MIN_COMPACTION_THRESHOLD;
+
+    /**
+     * the cursors of the users identified by their username
+     */
+    private final Map<String, Cursor> cursors = new HashMap<>();
+
+    /**
+     * the cursors having a user in their roster, identified by the username of this user
+     */
+    private final Map<String, Set<Cursor>> subscribers = new HashMap<>();
+
+    /**
+     * Constructor.
+     * @param lastSequence the sequence number of the last event already appended, e.g. before a restart
+     */
+    public MembershipLog(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    /**
+     * Append a new event to the log and wake up the waiting readers.
+     * @param type the type of the event
+     * @param user the user concerned by the event
+     * @return the sequence number of the event
+     */
+    public long append(MembershipEventType type, User user) {
+        return this.append(type, user, true);
+    }
+
+    /**
+     * Append the events of a batch of users at once, so that the waiting readers are woken up
+     * once and receive them in the same batch.
+     * @param type the type of the events
+     * @param users the users concerned by the events
+     * @return the sequence number of the first event, the next events having the next sequence numbers
+     */
+    public long appendAll(MembershipEventType type, List<User> users) {
+        this.lock.lock();
+        try {
+            long first = this.lastSequence + 1;
+            for (User user : users)
+                this.add(type, user, true);
+            this.changed.signalAll();
+            return first;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Append an event received from another partition of the directory, which is
+     * merged with the local events under a local sequence number.
+     * @param type the type of the event
+     * @param user the user concerned by the event
+     * @return the sequence number of the event
+     */
+    public long appendRemote(MembershipEventType type, User user) {
+        return this.append(type, user, false);
+    }
+
+    /**
+     * Append a gap entry, telling that some events of another partition of the directory have
+     * been missed. It is never returned to the readers, but the readers whose position is before
+     * it have to synchronize their directory again.
+     */
+    public void appendGap() {
+        this.lock.lock();
+        try {
+            this.lastGap = this.append(null, null, false);
+            // the readers of a roster wait on their own cursor, and are told about the gap too
+            for (Cursor cursor : this.cursors.values())
+                cursor.changed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Append an event received from another server, keeping its sequence number. If the
+     * event does not directly follow the last one, the history of the log is dropped.
+     * @param type the type of the event
+     * @param user the user concerned by the event
+     * @param sequence the sequence number of the event
+     */
+    public void appendReplicated(MembershipEventType type, User user, long sequence) {
+        this.lock.lock();
+        try {
+            if (sequence <= this.lastSequence)
+                return;
+            if (sequence != this.lastSequence + 1)
+                this.reset(sequence - 1);
+            this.append(type, user, false);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the history of the log and restart it from a sequence number, e.g. after
+     * the directory has been replaced by a snapshot. The readers whose position is
+     * before the new start have to synchronize their directory again.
+     * @param sequence the sequence number of the last event of the new log
+     */
+    public void reset(long sequence) {
+        this.lock.lock();
+        try {
+            this.entries.clear();
+            this.head = 0;
+            this.lastSequence = sequence;
+            this.lastGap = sequence;
+            // the inboxes of the rosters hold events of the dropped history, their readers are woken up to be told
+            for (Cursor cursor : this.cursors.values()) {
+                cursor.inbox.clear();
+                cursor.changed.signalAll();
+            }
+            this.changed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Open the cursor of a user at the end of the log. The events concerning
+     * the user itself are never returned to it.
+     * @param username the username of the user
+     */
+    public void openCursor(String username) {
+        this.lock.lock();
+        try {
+            Cursor previous = this.cursors.put(username, new Cursor(this.lastSequence, this.lock.newCondition()));
+            if (previous != null)
+                this.unsubscribe(previous);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Close the cursor of a user, releasing the entries it was retaining and
+     * the readers waiting on it.
+     * @param username the username of the user
+     */
+    public void closeCursor(String username) {
+        this.lock.lock();
+        try {
+            Cursor cursor = this.cursors.remove(username);
+            if (cursor != null) {
+                this.unsubscribe(cursor);
+                this.changed.signalAll();
+                cursor.changed.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Restrict the cursor of a user to the events of the users of a roster, or give it all
+     * the events again. The cursor is moved to the end of the log, so the reader has to get
+     * the current state of the users of its roster, or of the whole directory.
+     * @param username the username of the reader
+     * @param roster the usernames of the users whose events are read, or null to read all the events
+     * @return the sequence number from which the events are read, or -1 if the cursor does not exist
+     */
+    public long setRoster(String username, Set<String> roster) {
+        this.lock.lock();
+        try {
+            Cursor cursor = this.cursors.get(username);
+            if (cursor == null)
+                return -1;
+
+            this.unsubscribe(cursor);
+            cursor.roster = roster;
+            cursor.position = this.lastSequence;
+            if (roster != null) {
+                for (String name : roster)
+                    this.subscribers.computeIfAbsent(name, key -> new HashSet<>()).add(cursor);
+            }
+            // wake up the reader waiting on the condition of its previous roster
+            this.changed.signalAll();
+            cursor.changed.signalAll();
+            return this.lastSequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Acknowledge the events up to a sequence number, and wait until newer events
+     * are available or the timeout expires. The events not delivered yet are coalesced
+     * per user: a registration followed by a deregistration cancel each other, and a
+     * deregistration followed by a registration become an update.
+     * @param username the username of the reader
+     * @param after the sequence number up to which the reader has read the log,
+     *              or a negative value to resume from the cursor of the reader
+     * @param maxBatchSize the maximum number of events to return
+     * @param timeout the maximum time to wait in milliseconds, or a negative value to wait indefinitely
+     * @return the first coalesced events after the cursor, possibly none if the
+     * timeout expired or the log has been closed, {@link #MISSED_EVENTS} if events after the
+     * cursor have been discarded by a reset or missed before a gap entry, including while the
+     * reader was waiting, or null if the cursor has been closed
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public MembershipBatch take(String username, long after, int maxBatchSize, long timeout)
+            throws InterruptedException {
+        this.lock.lock();
+        try {
+            Cursor cursor = this.cursors.get(username);
+            if (cursor == null)
+                return null;
+
+            if (after > cursor.position)
+                cursor.position = Math.min(after, this.lastSequence);
+            while (!cursor.inbox.isEmpty() && cursor.inbox.peekFirst().getSequence() <= cursor.position)
+                cursor.inbox.pollFirst();
+
+            long position = cursor.position;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            Map<String, MembershipEvent> pending = new LinkedHashMap<>();
+            while (this.cursors.get(username) == cursor) {
+                // checked on every wake up, so that the cursor is never moved past a reset or a gap entry;
+                // a position after the last event comes from a history dropped by a reset to an older sequence
+                if (position < this.lastGap || position > this.lastSequence
+                        || cursor.roster == null && this.hasMissedChanges(position))
+                    return MISSED_EVENTS;
+
+                Condition condition;
+                if (cursor.roster == null) {
+                    for (int i = this.indexAfter(position); i < this.entries.size() && pending.size() < maxBatchSize; i++) {
+                        MembershipEvent event = this.entries.get(i);
+                        if (event.getType() != null && !username.equals(event.getUser().getUsername()))
+                            this.coalesce(pending, event);
+                        position = event.getSequence();
+                    }
+                    condition = this.changed;
+                } else {
+                    // the inbox only holds the events of the roster, the other events are skipped at once
+                    pending.clear();
+                    Iterator<MembershipEvent> iterator = cursor.inbox.iterator();
+                    position = cursor.position;
+                    while (iterator.hasNext() && pending.size() < maxBatchSize) {
+                        MembershipEvent event = iterator.next();
+                        if (!username.equals(event.getUser().getUsername()))
+                            this.coalesce(pending, event);
+                        position = event.getSequence();
+                    }
+                    if (!iterator.hasNext())
+                        position = this.lastSequence;
+                    condition = cursor.changed;
+                }
+
+                if (!pending.isEmpty() || this.closed)
+                    return new MembershipBatch(position, new ArrayList<>(pending.values()));
+
+                if (timeout < 0) {
+                    condition.await();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return new MembershipBatch(position, new ArrayList<MembershipEvent>());
+                    condition.awaitNanos(remaining);
+                }
+            }
+            return null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Tell if the changes of the directory after a sequence number cannot be rebuilt from the log,
+     * because some events have been discarded or a gap entry has been appended after it.
+     * @param sequence the sequence number
+     * @return true if and only if the directory must be synchronized again from this sequence number
+     */
+    public boolean hasMissedChanges(long sequence) {
+        this.lock.lock();
+        try {
+            return sequence < this.lastGap || sequence < this.lastSequence - (this.entries.size() - this.head);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the events appended after a sequence number, if they are still in the log,
+     * gap entries included.
+     * @param sequence the sequence number
+     * @param limit the maximum number of events to return
+     * @return the first events after the sequence number, or null if some of them have been discarded
+     */
+    public List<MembershipEvent> since(long sequence, int limit) {
+        this.lock.lock();
+        try {
+            long firstSequence = this.lastSequence - (this.entries.size() - this.head) + 1;
+            if (sequence < firstSequence - 1 || sequence > this.lastSequence)
+                return null;
+
+            int from = this.indexAfter(sequence);
+            int to = (int) Math.min(this.entries.size(), (long) from + limit);
+            return new ArrayList<>(this.entries.subList(from, to));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the changes of the directory appended after a sequence number, checking in the same
+     * step that none of them has been missed, so that a gap entry appended meanwhile is never
+     * returned as a change.
+     * @param sequence the sequence number
+     * @param limit the maximum number of changes to return
+     * @return the first changes after the sequence number, or null if the directory must be
+     * synchronized again from this sequence number
+     */
+    public List<MembershipEvent> changesSince(long sequence, int limit) {
+        this.lock.lock();
+        try {
+            return this.hasMissedChanges(sequence) ? null : this.since(sequence, limit);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Close the log, answering all the waiting readers right away. The readers
+     * that come after do not wait anymore either.
+     */
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.changed.signalAll();
+            for (Cursor cursor : this.cursors.values())
+                cursor.changed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until an event is appended after a sequence number, the log is closed or the timeout expires.
+     * @param sequence the sequence number
+     * @param timeout the maximum time to wait in milliseconds
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void awaitAfter(long sequence, long timeout) throws InterruptedException {
+        this.lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (this.lastSequence <= sequence && !this.closed && remaining > 0)
+                remaining = this.changed.awaitNanos(remaining);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Tell if some events a reader has not read yet have been discarded, which only happens
+     * when the history of the log has been dropped by a reset, or have been missed before a gap entry.
+     * @param username the username of the reader
+     * @param after the sequence number up to which the reader has read the log
+     * @return true if and only if the reader has to synchronize its directory again
+     */
+    public boolean hasMissedEvents(String username, long after) {
+        this.lock.lock();
+        try {
+            Cursor cursor = this.cursors.get(username);
+            long position = cursor != null ? Math.max(after, cursor.position) : after;
+            // the inbox of a roster holds all its events whatever the discarded entries
+            if (cursor != null && cursor.roster != null)
+                return position < this.lastGap;
+            return this.hasMissedChanges(position);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the sequence number of the last appended event.
+     * @return the sequence number of the last event
+     */
+    public long getLastSequence() {
+        return this.lastSequence;
+    }
+
+    /**
+     * Count the events that each open cursor has not acknowledged yet, i.e. all the events after
+     * its position, or the events of its inbox if it has a roster. Since this scans all the cursors,
+     * it is only meant to be called from time to time, e.g. when the metrics are read.
+     * @param histogram the array in which the number of cursors per bucket of unread events is added,
+     *                  with the buckets of {@link SignalingMetrics#bucketOf(long)}
+     * @return the highest number of events not acknowledged by a cursor
+     */
+    public long countUnreadEvents(long[] histogram) {
+        this.lock.lock();
+        try {
+            long max = 0;
+            for (Cursor cursor : this.cursors.values()) {
+                long unread = cursor.roster == null ? this.lastSequence - cursor.position : cursor.inbox.size();
+                histogram[Math.min(histogram.length - 1, SignalingMetrics.bucketOf(unread))]++;
+                max = Math.max(max, unread);
+            }
+            return max;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Append a new event to the log and wake up the waiting readers.
+     * @param type the type of the event, or null for a gap entry
+     * @param user the user concerned by the event, or null for a gap entry
+     * @param local true if the event happened on this server, false if it was received from another server
+     * @return the sequence number of the event
+     */
+    private long append(MembershipEventType type, User user, boolean local) {
+        this.lock.lock();
+        try {
+            this.add(type, user, local);
+            this.changed.signalAll();
+            return this.lastSequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Add a new event to the log and to the inboxes of its subscribers, without waking up
+     * the readers without a roster. The lock must be held.
+     * @param type the type of the event, or null for a gap entry
+     * @param user the user concerned by the event, or null for a gap entry
+     * @param local true if the event happened on this server, false if it was received from another server
+     */
+    private void add(MembershipEventType type, User user, boolean local) {
+        this.lastSequence++;
+        MembershipEvent event = new MembershipEvent(this.lastSequence, type, user, local);
+        this.entries.add(event);
+        if (this.entries.size() - this.head >= this.compactionThreshold)
+            this.compact();
+
+        Set<Cursor> subscribers = user != null ? this.subscribers.get(user.getUsername()) : null;
+        if (subscribers != null) {
+            for (Cursor cursor : subscribers) {
+                cursor.inbox.addLast(event);
+                cursor.changed.signal();
+            }
+        }
+    }
+
+    /**
+     * Get the index in the entries of the first event after a sequence number.
+     * @param sequence the sequence number
+     * @return the index of the first live entry whose sequence number is greater than the given one
+     */
+    private int indexAfter(long sequence) {
+        long firstSequence = this.lastSequence - (this.entries.size() - this.head) + 1;
+        return this.head + (int) Math.max(0, sequence + 1 - firstSequence);
+    }
+
+    /**
+     * Remove a cursor from the reverse index of the rosters.
+     * @param cursor the cursor
+     */
+    private void unsubscribe(Cursor cursor) {
+        if (cursor.roster == null)
+            return;
+
+        for (String name : cursor.roster) {
+            Set<Cursor> subscribers = this.subscribers.get(name);
+            if (subscribers != null && subscribers.remove(cursor) && subscribers.isEmpty())
+                this.subscribers.remove(name);
+        }
+        cursor.inbox.clear();
+    }
+
+    /**
+     * Add an event to the events not delivered yet, merging it with the pending event of the same user.
+     * @param pending the pending events identified by the username of their user
+     * @param event the event to add
+     */
+    private void coalesce(Map<String, MembershipEvent> pending, MembershipEvent event) {
+        String name = event.getUser().getUsername();
+        MembershipEvent previous = pending.get(name);
+        if (previous == null) {
+            pending.put(name, event);
+        } else if (previous.getType() == MembershipEventType.JOINED && event.getType() == MembershipEventType.LEFT) {
+            pending.remove(name);
+        } else if (previous.getType() == MembershipEventType.LEFT && event.getType() == MembershipEventType.JOINED) {
+            pending.put(name, new MembershipEvent(event.getSequence(), MembershipEventType.UPDATED, event.getUser()));
+        } else {
+            pending.put(name, event);
+        }
+    }
+
+    /**
+     * Discard the entries that every open cursor without a roster has moved past. Since this
+     * scans all the cursors, the next compaction only happens once the live
+     * entries have doubled, and the backing list is only shrunk once half of
+     * it is dead, so that both costs are amortized over the appended events.
+     */
+    private void compact() {
+        long min = this.lastSequence - HISTORY_SIZE;
+        for (Cursor cursor : this.cursors.values()) {
+            if (cursor.roster == null)
+                min = Math.min(min, cursor.position);
+        }
+
+        while (this.head < this.entries.size() && this.entries.get(this.head).getSequence() <= min)
+            this.entries.set(this.head++, null);
+
+        if (this.head > this.entries.size() / 2) {
+            this.entries.subList(0, this.head).clear();
+            this.head = 0;
+        }
+        this.compactionThreshold = Math.max(MIN_COMPACTION_THRESHOLD, 2 * (this.entries.size() - this.head));
+    }
+
+    /**
+     * The position of a reader in the log.
+     */
+    private static class Cursor {
+
+        /**
+         * the last sequence number acknowledged by the reader
+         */
+        private long position;
+
+        /**
+         * the usernames of the users whose events are read, null to read all the events
+         */
+        private Set<String> roster;
+
+        /**
+         * the events of the users of the roster not acknowledged yet, ordered by sequence number
+         */
+        private final ArrayDeque<MembershipEvent> inbox = new ArrayDeque<>();
+
+        /**
+         * the condition signaled when an event is added to the inbox, or when the cursor changes
+         */
+        private final Condition changed;
+
+        /**
+         * Constructor.
+         * @param position the initial position of the reader
+         * @param changed the condition signaled when an event is added to the inbox
+         */
+        private Cursor(long position, Condition changed) {
+            this.position = position;
+            this.changed = changed;
+        }
+
+    }
+
+}
@@ -0,0 +1,154 @@
+package fr.ensibs.peerExpress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP handler streaming the membership events of the signaling server over
+ * one long-lived chunked response, as a lighter alternative to the SOAP long polling.
+ * The request is GET ?username=&lt;username&gt;&amp;token=&lt;token&gt;&amp;after=&lt;sequence&gt;,
+ * and each line of the response is one of the following frames, whose strings are URL-encoded:
+ * <ul>
+ *     <li>{@code J <sequence> <username> <host> <port>} a user has registered</li>
+ *     <li>{@code U <sequence> <username> <host> <port>} a user has registered again</li>
+ *     <li>{@code L <sequence> <username>} a user has deregistered</li>
+ *     <li>{@code S <sequence>} the log has been read up to the sequence number, also sent as a heartbeat</li>
+ * </ul>
+ */
+public class MembershipStreamHandler implements HttpHandler {
+
+    /**
+     * the maximum number of events read from the log at once
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * the time in milliseconds after which a position frame is sent if nothing happened
+     */
+    private static final long HEARTBEAT_PERIOD = 20000;
+
+    /**
+     * the signaling service whose events are streamed
+     */
+    private final PeerExpressSignalingImpl signaling;
+
+    /**
+     * Constructor.
+     * @param signaling the signaling service whose events are streamed
+     */
+    public MembershipStreamHandler(PeerExpressSignalingImpl signaling) {
+        this.signaling = signaling;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            String username = parameters.get("username");
+            String token = parameters.get("token");
+            long after;
+            try {
+                after = Long.parseLong(parameters.getOrDefault("after", "-1"));
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            // the first read checks the parameters before the response is committed
+            MembershipBatch batch;
+            try {
+                batch = this.signaling.takeMembershipEvents(username, token, after, BATCH_SIZE, 0);
+            } catch (PeerExpressSignalingHTTP e) {
+                if (e.getRetryAfter() > 0)
+                    exchange.getResponseHeaders().set("Retry-After",
+                            Long.toString(TimeUnit.MILLISECONDS.toSeconds(e.getRetryAfter() + 999)));
+                exchange.sendResponseHeaders(e.getHttpCode(), -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+            while (true) {
+                for (MembershipEvent event : batch.getEvents())
+                    writeEvent(writer, event);
+                writer.write("S " + batch.getSequence() + "\n");
+                writer.flush();
+
+                if (this.signaling.isClosed())
+                    break;
+                try {
+                    batch = this.signaling.takeMembershipEvents(username, token, batch.getSequence(), BATCH_SIZE,
+                            HEARTBEAT_PERIOD);
+                } catch (PeerExpressSignalingHTTP e) {
+                    // the user has been unregistered or has missed events (410): the stream ends without
+                    // moving past the last sequence sent, and the client falls back to the SOAP service,
+                    // which answers the same error
+                    break;
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Write the frame of a membership event.
+     * @param writer the writer of the response
+     * @param event the membership event
+     * @throws IOException if the client is gone
+     */
+    private static void writeEvent(Writer writer, MembershipEvent event) throws IOException {
+        User user = event.getUser();
+        String username = URLEncoder.encode(user.getUsername(), "UTF-8");
+        switch (event.getType()) {
+            case JOINED:
+            case UPDATED:
+                String type = event.getType() == MembershipEventType.JOINED ? "J" : "U";
+                writer.write(type + " " + event.getSequence() + " " + username + " "
+                        + URLEncoder.encode(user.getHost(), "UTF-8") + " " + user.getPort() + "\n");
+                break;
+            case LEFT:
+                writer.write("L " + event.getSequence() + " " + username + "\n");
+                break;
+        }
+    }
+
+    /**
+     * Parse the parameters of the query string of a request.
+     * @param query the raw query string, possibly null
+     * @return the decoded parameters identified by their name
+     * @throws UnsupportedEncodingException never, UTF-8 is always supported
+     */
+    static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null)
+            return parameters;
+
+        for (String parameter : query.split("&")) {
+            int index = parameter.indexOf('=');
+            if (index > 0)
+                parameters.put(URLDecoder.decode(parameter.substring(0, index), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(index + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+}
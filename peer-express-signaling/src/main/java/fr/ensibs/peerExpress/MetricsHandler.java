@@ -0,0 +1,50 @@
+package fr.ensibs.peerExpress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An HTTP handler answering GET requests with the metrics of the signaling server
+ * in the Prometheus text format, to be scraped next to the SOAP service.
+ */
+public class MetricsHandler implements HttpHandler {
+
+    /**
+     * the metrics of the signaling server
+     */
+    private final SignalingMetrics metrics;
+
+    /**
+     * Constructor.
+     * @param metrics the metrics of the signaling server
+     */
+    public MetricsHandler(SignalingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            StringBuilder text = new StringBuilder();
+            this.metrics.writeText(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+}
@@ -0,0 +1,755 @@
+package fr.ensibs.peerExpress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A directory store keeping the users off the heap, in an open addressing hash table
+ * mapped from a file, so that a large directory does not weigh on the garbage collector.
+ * Each slot of the table holds a user in a fixed size, its username and host being
+ * written in UTF-8; the few users whose username or host is too long for a slot are
+ * kept on the heap. The table is probed linearly and doubled when three quarters full,
+ * and a removal shifts back the next users of its probe sequence instead of leaving a
+ * tombstone. Only the usernames are also kept on the heap, in an ordered set giving the
+ * order of the pages and searches.
+ * <p>
+ * When the store is closed, the header of the file records the version of the directory
+ * and that the table is complete, so that the store is reopened as it is on the next start
+ * and only the newer journal records are replayed. A store that was not closed, e.g. after
+ * a crash, is emptied and the directory is recovered from the journal.
+ */
+public class OffHeapDirectoryStore implements DirectoryStore {
+
+    /**
+     * the number identifying the files of the store
+     */
+    private static final int MAGIC = 0x50455844;
+
+    /**
+     * the size in bytes of the header of the file
+     */
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * the offsets of the fields of the header: the magic number, the number of slots, the
+     * number of users in the table, 1 if the store was closed, and the version of the directory
+     */
+    private static final int MAGIC_OFFSET = 0, CAPACITY_OFFSET = 4, COUNT_OFFSET = 8, CLOSED_OFFSET = 12,
+            VERSION_OFFSET = 16;
+
+    /**
+     * the size in bytes of a slot
+     */
+    private static final int SLOT_SIZE = 128;
+
+    /**
+     * the offsets of the fields of a slot: 1 if the slot is used, the lengths of the username
+     * and host, the hash of the username, the port, the token, the username and the host
+     */
+    private static final int USED = 0, USERNAME_LENGTH = 1, HOST_LENGTH = 2, HASH = 4, PORT = 8, TOKEN_HIGH = 16,
+            TOKEN_LOW = 24, USERNAME = 32, HOST = 80;
+
+    /**
+     * the maximum size in bytes of the username and of the host of a user kept in the table
+     */
+    private static final int MAX_USERNAME_SIZE = HOST - USERNAME, MAX_HOST_SIZE = SLOT_SIZE - HOST;
+
+    /**
+     * the logarithm of the number of slots of a mapped segment of the file, which may not exceed 2 GB
+     */
+    private static final int SEGMENT_BITS = 22;
+
+    /**
+     * the number of slots of a new table
+     */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /**
+     * the file of the table
+     */
+    private final File file;
+
+    /**
+     * the file where the users kept on the heap are saved when the store is closed
+     */
+    private final File overflowFile;
+
+    /**
+     * the lock of the store, shared by the reads
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * the table of the users
+     */
+    private Table table;
+
+    /**
+     * the number of users in the table
+     */
+    private int count;
+
+    /**
+     * the users whose username or host is too long for a slot, identified by their username
+     */
+    private final Map<String, User> overflow = new HashMap<>();
+
+    /**
+     * the usernames of all the users, ordered
+     */
+    private final NavigableSet<String> usernames = new ConcurrentSkipListSet<>();
+
+    /**
+     * the version of the directory when the store was opened, or -1 if it was empty
+     */
+    private long version = -1;
+
+    /**
+     * true once the store has been closed
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * @param file the file of the table
+     * @param reopen true to reopen the table left by the last closing of the store,
+     *               false to start with an empty table
+     * @throws IOException if the file cannot be mapped
+     */
+    public OffHeapDirectoryStore(File file, boolean reopen) throws IOException {
+        this.file = file;
+        this.overflowFile = new File(file.getPath() + ".overflow");
+        if (!reopen || !this.reopen())
+            this.table = Table.create(file, INITIAL_CAPACITY);
+    }
+
+    @Override
+    public User get(String username) {
+        this.lock.readLock().lock();
+        try {
+            User user = this.overflow.get(username);
+            if (user != null)
+                return user;
+            int slot = this.table.find(username.getBytes(StandardCharsets.UTF_8), hash(username));
+            return slot >= 0 ? this.table.read(slot) : null;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(String username) {
+        this.lock.readLock().lock();
+        try {
+            return this.overflow.containsKey(username)
+                    || this.table.find(username.getBytes(StandardCharsets.UTF_8), hash(username)) >= 0;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public User putIfAbsent(User user) {
+        this.lock.writeLock().lock();
+        try {
+            User current = this.get(user.getUsername());
+            if (current == null)
+                this.insert(user);
+            return current;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public User put(User user) {
+        this.lock.writeLock().lock();
+        try {
+            User previous = this.delete(user.getUsername());
+            this.insert(user);
+            return previous;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(User user) {
+        this.lock.writeLock().lock();
+        try {
+            User current = this.get(user.getUsername());
+            if (current == null || !current.hasSameToken(user))
+                return false;
+            this.delete(user.getUsername());
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public User remove(String username) {
+        this.lock.writeLock().lock();
+        try {
+            return this.delete(username);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<User> values() {
+        return new AbstractCollection<User>() {
+            @Override
+            public Iterator<User> iterator() {
+                return OffHeapDirectoryStore.this.iterator(null, true);
+            }
+
+            @Override
+            public int size() {
+                return OffHeapDirectoryStore.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<User> iterator(String from, boolean inclusive) {
+        Iterator<String> names = (from != null ? this.usernames.tailSet(from, inclusive) : this.usernames).iterator();
+        return new Iterator<User>() {
+
+            /**
+             * the next user to return, or null if it has not been read yet
+             */
+            private User next;
+
+            @Override
+            public boolean hasNext() {
+                // skip the users removed since their username was read
+                while (this.next == null && names.hasNext())
+                    this.next = get(names.next());
+                return this.next != null;
+            }
+
+            @Override
+            public User next() {
+                if (!this.hasNext())
+                    throw new NoSuchElementException();
+                User user = this.next;
+                this.next = null;
+                return user;
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        this.lock.writeLock().lock();
+        try {
+            this.checkOpen();
+            this.replaceTable(INITIAL_CAPACITY, false);
+            this.overflow.clear();
+            this.usernames.clear();
+            this.count = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return this.version;
+    }
+
+    @Override
+    public void close(long version) throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            if (this.closed)
+                return;
+            this.closed = true;
+
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(this.overflowFile)))) {
+                output.writeInt(this.overflow.size());
+                for (User user : this.overflow.values()) {
+                    output.writeUTF(user.getUsername());
+                    output.writeUTF(user.getHost());
+                    output.writeInt(user.getPort());
+                    output.writeLong(user.getTokenHigh());
+                    output.writeLong(user.getTokenLow());
+                }
+            }
+            this.table.force();
+            this.table.header.putInt(COUNT_OFFSET, this.count);
+            this.table.header.putLong(VERSION_OFFSET, version);
+            this.table.header.putInt(CLOSED_OFFSET, 1);
+            this.table.header.force();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of users.
+     * @return the number of users
+     */
+    private int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.count + this.overflow.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add a user whose username is not in the store. The write lock must be held.
+     * @param user the user
+     */
+    private void insert(User user) {
+        this.checkOpen();
+        byte[] username = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] host = user.getHost().getBytes(StandardCharsets.UTF_8);
+        if (username.length > MAX_USERNAME_SIZE || host.length > MAX_HOST_SIZE) {
+            this.overflow.put(user.getUsername(), user);
+        } else {
+            if (this.count + 1 > this.table.capacity / 4 * 3)
+                this.replaceTable(this.table.capacity * 2, true);
+            int hash = hash(user.getUsername());
+            this.table.write(-this.table.find(username, hash) - 1, hash, username, host, user);
+            this.count++;
+        }
+        this.usernames.add(user.getUsername());
+    }
+
+    /**
+     * Remove the user with a given username. The write lock must be held.
+     * @param username the username of the user
+     * @return the removed user, or null if there was none
+     */
+    private User delete(String username) {
+        this.checkOpen();
+        User user = this.overflow.remove(username);
+        if (user == null) {
+            int slot = this.table.find(username.getBytes(StandardCharsets.UTF_8), hash(username));
+            if (slot < 0)
+                return null;
+            user = this.table.read(slot);
+            this.table.delete(slot);
+            this.count--;
+        }
+        this.usernames.remove(username);
+        return user;
+    }
+
+    /**
+     * Reopen the table left by the last closing of the store, with the users kept on the heap.
+     * @return true if the table has been reopened, false if there is none or it was not closed
+     * @throws IOException if the files cannot be read
+     */
+    private boolean reopen() throws IOException {
+        if (!this.file.exists() || !this.overflowFile.exists())
+            return false;
+
+        Table table = Table.open(this.file);
+        if (table == null)
+            return false;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.overflowFile)))) {
+            int size = input.readInt();
+            for (int i = 0; i < size; i++) {
+                String username = input.readUTF();
+                String host = input.readUTF();
+                int port = input.readInt();
+                this.overflow.put(username, new User(username, host, port, input.readLong(), input.readLong()));
+                this.usernames.add(username);
+            }
+        }
+        for (int slot = 0; slot < table.capacity; slot++) {
+            if (table.isUsed(slot)) {
+                this.usernames.add(table.readUsername(slot));
+                this.count++;
+            }
+        }
+        this.table = table;
+        this.version = table.header.getLong(VERSION_OFFSET);
+
+        // the table is changed in place from now on, so it is incomplete until the store is closed again
+        table.header.putInt(CLOSED_OFFSET, 0);
+        table.header.force();
+        return true;
+    }
+
+    /**
+     * Replace the table by a new one of another size, built in a temporary file which then replaces the file.
+     * The previous table is unmapped right away, rather than when its buffers are garbage collected, so that
+     * the memory and the disk space of the replaced file are released at each resizing or clearing. This is
+     * safe since the table is only replaced under the write lock, while no reader uses it.
+     * @param capacity the number of slots of the new table, a power of 2
+     * @param rehash true to move the users of the current table to the new one, false to leave it empty
+     */
+    private void replaceTable(int capacity, boolean rehash) {
+        File temporary = new File(this.file.getPath() + ".tmp");
+        Table table = null;
+        try {
+            table = Table.create(temporary, capacity);
+            if (rehash) {
+                for (int slot = 0; slot < this.table.capacity; slot++) {
+                    if (this.table.isUsed(slot))
+                        table.copy(this.table, slot);
+                }
+            }
+            Files.move(temporary.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (table != null)
+                table.unmap();
+            try {
+                Files.deleteIfExists(temporary.toPath());
+            } catch (IOException ignored) {
+                // the temporary file is replaced by the next resizing
+            }
+            throw new IllegalStateException("The directory store could not be resized", e);
+        }
+        Table previous = this.table;
+        this.table = table;
+        if (previous != null)
+            previous.unmap();
+    }
+
+    /**
+     * Check that the store has not been closed, after which its file must not change anymore.
+     */
+    private void checkOpen() {
+        if (this.closed)
+            throw new IllegalStateException("The directory store is closed");
+    }
+
+    /**
+     * Release the mapping of a buffer without waiting for the buffer to be garbage collected,
+     * through the cleaner of the buffer on Java 8 and through Unsafe.invokeCleaner on Java 9 and
+     * later, since neither is a public API. If neither is available, the mapping is left to the
+     * garbage collector.
+     * @param buffer the mapped buffer, which must not be used anymore
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the mapping is released once the buffer is garbage collected
+        }
+    }
+
+    /**
+     * Get the hash of a username, whose low bits are the index of its first slot.
+     * @param username the username
+     * @return the hash of the username
+     */
+    private static int hash(String username) {
+        int hash = username.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * An open addressing hash table of users, mapped from a file by segments.
+     */
+    private static class Table {
+
+        /**
+         * the header of the file
+         */
+        private final MappedByteBuffer header;
+
+        /**
+         * the segments of the slots
+         */
+        private final MappedByteBuffer[] segments;
+
+        /**
+         * the number of slots, a power of 2
+         */
+        private final int capacity;
+
+        /**
+         * Constructor.
+         * @param channel the channel of the file
+         * @param capacity the number of slots
+         * @throws IOException if the file cannot be mapped
+         */
+        private Table(FileChannel channel, int capacity) throws IOException {
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            int segmentSlots = Math.min(capacity, 1 << SEGMENT_BITS);
+            this.segments = new MappedByteBuffer[capacity / segmentSlots];
+            for (int i = 0; i < this.segments.length; i++)
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + (long) i * segmentSlots * SLOT_SIZE, (long) segmentSlots * SLOT_SIZE);
+            this.capacity = capacity;
+        }
+
+        /**
+         * Create an empty table, whose file is sparse until its slots are written.
+         * @param file the file of the table, replaced if it exists
+         * @param capacity the number of slots, a power of 2
+         * @return the table
+         * @throws IOException if the file cannot be created
+         */
+        private static Table create(File file, int capacity) throws IOException {
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                output.setLength(0);
+                output.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+                Table table = new Table(output.getChannel(), capacity);
+                table.header.putInt(MAGIC_OFFSET, MAGIC);
+                table.header.putInt(CAPACITY_OFFSET, capacity);
+                return table;
+            }
+        }
+
+        /**
+         * Open the table of a store that was closed.
+         * @param file the file of the table
+         * @return the table, or null if the file is not the table of a closed store
+         * @throws IOException if the file cannot be read
+         */
+        private static Table open(File file) throws IOException {
+            try (RandomAccessFile input = new RandomAccessFile(file, "rw")) {
+                if (input.length() < HEADER_SIZE || input.readInt() != MAGIC)
+                    return null;
+                int capacity = input.readInt();
+                input.readInt();
+                if (input.readInt() != 1 || Integer.bitCount(capacity) != 1
+                        || input.length() != HEADER_SIZE + (long) capacity * SLOT_SIZE)
+                    return null;
+                return new Table(input.getChannel(), capacity);
+            }
+        }
+
+        /**
+         * Find the slot of a username.
+         * @param username the username in UTF-8
+         * @param hash the hash of the username
+         * @return the slot of the username, or -1 minus the empty slot where it would be written
+         */
+        private int find(byte[] username, int hash) {
+            int mask = this.capacity - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                MappedByteBuffer segment = this.segment(slot);
+                int offset = offset(slot);
+                if (segment.get(offset + USED) == 0)
+                    return -slot - 1;
+                if (segment.getInt(offset + HASH) == hash && this.matches(segment, offset, username))
+                    return slot;
+            }
+        }
+
+        /**
+         * Tell if a slot holds a given username.
+         * @param segment the segment of the slot
+         * @param offset the offset of the slot in the segment
+         * @param username the username in UTF-8
+         * @return true if and only if the slot holds the username
+         */
+        private boolean matches(MappedByteBuffer segment, int offset, byte[] username) {
+            if ((segment.get(offset + USERNAME_LENGTH) & 0xff) != username.length)
+                return false;
+            for (int i = 0; i < username.length; i++) {
+                if (segment.get(offset + USERNAME + i) != username[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Tell if a slot holds a user.
+         * @param slot the slot
+         * @return true if and only if the slot is used
+         */
+        private boolean isUsed(int slot) {
+            return this.segment(slot).get(offset(slot) + USED) != 0;
+        }
+
+        /**
+         * Read the user of a slot.
+         * @param slot the slot, which must be used
+         * @return the user
+         */
+        private User read(int slot) {
+            MappedByteBuffer segment = this.segment(slot);
+            int offset = offset(slot);
+            byte[] host = new byte[segment.get(offset + HOST_LENGTH) & 0xff];
+            for (int i = 0; i < host.length; i++)
+                host[i] = segment.get(offset + HOST + i);
+            return new User(this.readUsername(slot), new String(host, StandardCharsets.UTF_8),
+                    segment.getInt(offset + PORT), segment.getLong(offset + TOKEN_HIGH),
+                    segment.getLong(offset + TOKEN_LOW));
+        }
+
+        /**
+         * Read the username of the user of a slot.
+         * @param slot the slot, which must be used
+         * @return the username
+         */
+        private String readUsername(int slot) {
+            MappedByteBuffer segment = this.segment(slot);
+            int offset = offset(slot);
+            byte[] username = new byte[segment.get(offset + USERNAME_LENGTH) & 0xff];
+            for (int i = 0; i < username.length; i++)
+                username[i] = segment.get(offset + USERNAME + i);
+            return new String(username, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Write a user in a slot.
+         * @param slot the slot, which must be empty
+         * @param hash the hash of the username
+         * @param username the username in UTF-8
+         * @param host the host in UTF-8
+         * @param user the user
+         */
+        private void write(int slot, int hash, byte[] username, byte[] host, User user) {
+            MappedByteBuffer segment = this.segment(slot);
+            int offset = offset(slot);
+            segment.put(offset + USERNAME_LENGTH, (byte) username.length);
+            segment.put(offset + HOST_LENGTH, (byte) host.length);
+            segment.putInt(offset + HASH, hash);
+            segment.putInt(offset + PORT, user.getPort());
+            segment.putLong(offset + TOKEN_HIGH, user.getTokenHigh());
+            segment.putLong(offset + TOKEN_LOW, user.getTokenLow());
+            for (int i = 0; i < username.length; i++)
+                segment.put(offset + USERNAME + i, username[i]);
+            for (int i = 0; i < host.length; i++)
+                segment.put(offset + HOST + i, host[i]);
+            segment.put(offset + USED, (byte) 1);
+        }
+
+        /**
+         * Empty a slot, and move back into it the next users of the probe sequence that
+         * would no longer be found behind the empty slot.
+         * @param slot the slot
+         */
+        private void delete(int slot) {
+            int mask = this.capacity - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; this.isUsed(next); next = (next + 1) & mask) {
+                int home = this.segment(next).getInt(offset(next) + HASH) & mask;
+                // the user may move back if its first slot is not between the hole and its slot
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    this.move(next, hole);
+                    hole = next;
+                }
+            }
+            this.segment(hole).put(offset(hole) + USED, (byte) 0);
+        }
+
+        /**
+         * Copy a slot of another table to its slot in this table.
+         * @param table the other table
+         * @param slot the slot in the other table, which must be used
+         */
+        private void copy(Table table, int slot) {
+            int hash = table.segment(slot).getInt(offset(slot) + HASH);
+            int mask = this.capacity - 1;
+            int target = hash & mask;
+            while (this.isUsed(target))
+                target = (target + 1) & mask;
+            copySlot(table.segment(slot), offset(slot), this.segment(target), offset(target));
+        }
+
+        /**
+         * Move a slot of this table to another of its slots.
+         * @param from the slot to move, which must be used
+         * @param to the slot where it is moved
+         */
+        private void move(int from, int to) {
+            copySlot(this.segment(from), offset(from), this.segment(to), offset(to));
+        }
+
+        /**
+         * Write the changes of the table to the file.
+         */
+        private void force() {
+            for (MappedByteBuffer segment : this.segments)
+                segment.force();
+        }
+
+        /**
+         * Release the mappings of the table, which must not be used anymore.
+         */
+        private void unmap() {
+            OffHeapDirectoryStore.unmap(this.header);
+            for (MappedByteBuffer segment : this.segments)
+                OffHeapDirectoryStore.unmap(segment);
+        }
+
+        /**
+         * Get the segment of a slot.
+         * @param slot the slot
+         * @return the segment
+         */
+        private MappedByteBuffer segment(int slot) {
+            return this.segments[slot >>> SEGMENT_BITS];
+        }
+
+        /**
+         * Get the offset of a slot in its segment.
+         * @param slot the slot
+         * @return the offset in bytes
+         */
+        private static int offset(int slot) {
+            return (slot & ((1 << SEGMENT_BITS) - 1)) * SLOT_SIZE;
+        }
+
+        /**
+         * Copy the content of a slot.
+         * @param source the segment of the source slot
+         * @param from the offset of the source slot
+         * @param target the segment of the target slot
+         * @param to the offset of the target slot
+         */
+        private static void copySlot(MappedByteBuffer source, int from, MappedByteBuffer target, int to) {
+            for (int i = 0; i < SLOT_SIZE; i += 8)
+                target.putLong(to + i, source.getLong(from + i));
+        }
+
+    }
+
+}
@@ -1,19 +1,22 @@
 package fr.ensibs.peerExpress;
 
 import java.util.ArrayList;
+import java.util.List;
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.WebService;
 
 /**
  * A web service allowing the signaling phase before the peer-to-peer
- * communication between users.
+ * communication between users. When the server is overloaded, the requests
+ * fail with a 503 error telling after how long they may be retried.
  */
 @WebService(name = "PeerExpressSignaling", targetNamespace = "http://bakery.ensibs.fr")
 public interface PeerExpressSignaling {
 
     /**
-     * Register a new user in the signaling rendezvous point.
+     * Register a new user in the signaling rendezvous point, with a lease that must
+     * be renewed periodically.
      * @param username the username of the user in the community
      * @param host the host address of the local JORAM server of the user
      * @param port the opened port of the local JORAM server of the user
@@ -42,38 +45,168 @@ public interface PeerExpressSignaling {
     ;
 
     /**
-     * Get all the registered users of the signaling rendezvous point.
+     * Register a batch of new users at once, e.g. the identities bridged by a gateway. The
+     * batch is applied atomically: either every user is registered, or none if one of them
+     * cannot be, and the other users receive the registrations in one batch of events.
+     * When the directory is partitioned, the users must belong to the partition of this server.
+     * @param registrations the registrations of the users
+     * @return the registration tokens of the users, in the order of the registrations
+     * @throws PeerExpressSignalingHTTP if an error occurred
+     */
+    @WebMethod(operationName = "registerUsers")
+    ArrayList<String> registerUsers(
+            @WebParam(name = "registrations", partName = "registrations") List<Registration> registrations)
+            throws PeerExpressSignalingHTTP
+    ;
+
+    /**
+     * Unregister a batch of users at once. The batch is applied atomically: either every
+     * user is unregistered, or none if one of them cannot be, and the other users receive
+     * the deregistrations in one batch of events.
+     * @param deregistrations the usernames and registration tokens of the users
+     * @throws PeerExpressSignalingHTTP if an error occurred
+     */
+    @WebMethod(operationName = "unregisterUsers")
+    void unregisterUsers(
+            @WebParam(name = "deregistrations", partName = "deregistrations") List<Deregistration> deregistrations)
+            throws PeerExpressSignalingHTTP
+    ;
+
+    /**
+     * Renew the registration lease of a user. A user whose lease expires is
+     * unregistered, so the lease must be renewed before the returned duration elapses.
+     * @param username the username of the user in the community
+     * @param token the registration token of the user
+     * @return the duration of the new lease in milliseconds
+     * @throws PeerExpressSignalingHTTP if an error occurred
+     */
+    @WebMethod(operationName = "renewLease")
+    long renewLease(
+            @WebParam(name = "username", partName = "username") String username,
+            @WebParam(name = "token", partName = "token") String token)
+            throws PeerExpressSignalingHTTP
+    ;
+
+    /**
+     * Get all the registered users of the signaling rendezvous point. When the directory
+     * is partitioned, only the users of the partition of this server are returned.
      * @return the list of registered users
+     * @throws PeerExpressSignalingHTTP if an error occurred
      */
     @WebMethod(operationName = "getRegisteredUsers")
-    ArrayList<User> getRegisteredUsers();
+    ArrayList<User> getRegisteredUsers() throws PeerExpressSignalingHTTP;
 
     /**
-     * Block the execution until a new user has registered, and return it.
+     * Get a registered user, to resolve one recipient without fetching the whole
+     * directory. When the directory is partitioned, the request must be sent to the
+     * server of the partition of the user.
+     * @param username the username of the user in the community
+     * @return the registered user
+     * @throws PeerExpressSignalingHTTP if an error occurred
+     */
+    @WebMethod(operationName = "lookupUser")
+    User lookupUser(
+            @WebParam(name = "username", partName = "username") String username)
+            throws PeerExpressSignalingHTTP
+    ;
+
+    /**
+     * Get the registered users whose username starts with a given prefix, ordered by
+     * username. When the directory is partitioned, only the users of the partition of
+     * this server are returned.
+     * @param prefix the prefix of the usernames
+     * @param limit the maximum number of users to return
+     * @return the first registered users whose username starts with the prefix
+     * @throws PeerExpressSignalingHTTP if an error occurred
+     */
+    @WebMethod(operationName = "searchUsers")
+    ArrayList<User> searchUsers(
+            @WebParam(name = "prefix", partName = "prefix") String prefix,
+            @WebParam(name = "limit", partName = "limit") int limit)
+            throws PeerExpressSignalingHTTP
+    ;
+
+    /**
+     * Get the changes of the directory of registered users since a given version. If
+     * these changes are no longer known, the first page of the full directory is returned.
+     * When the directory is partitioned, the changes include the other partitions, but the
+     * pages only the users of the partition of this server.
+     * @param version the version of the directory known by the caller, or a negative value for none
+     * @param pageSize the maximum number of changes or users to return
+     * @return the changes since the given version, or the first page of the directory
+     * @throws PeerExpressSignalingHTTP if an error occurred
+     */
+    @WebMethod(operationName = "getRegisteredUsersSince")
+    DirectoryDelta getRegisteredUsersSince(
+            @WebParam(name = "version", partName = "version") long version,
+            @WebParam(name = "pageSize", partName = "pageSize") int pageSize)
+            throws PeerExpressSignalingHTTP
+    ;
+
+    /**
+     * Get a page of the directory of registered users ordered by username. The
+     * version of the page is the one of the directory when the page was read.
+     * @param after the last username of the previous page, or null for the first page
+     * @param pageSize the maximum number of users to return
+     * @return the page of registered users following the given username
+     * @throws PeerExpressSignalingHTTP if an error occurred
+     */
+    @WebMethod(operationName = "getRegisteredUsersPage")
+    DirectoryDelta getRegisteredUsersPage(
+            @WebParam(name = "after", partName = "after") String after,
+            @WebParam(name = "pageSize", partName = "pageSize") int pageSize)
+            throws PeerExpressSignalingHTTP
+    ;
+
+    /**
+     * Block the execution until users have registered, registered again or deregistered
+     * after a given position in the membership log or the timeout expires, and return
+     * the corresponding events. The events not delivered yet are coalesced per user.
      * @param username the username of the user in the community
      * @param token the registration token of the user
-     * @return the first user in the queue that has registered
+     * @param after the sequence number up to which the user has read the log, or a negative
+     *              value to resume from the last event acknowledged by the user
+     * @param maxBatchSize the maximum number of events to return
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the first events of the log after the given position, possibly none if the timeout expired
      * @throws PeerExpressSignalingHTTP if an error occurred
      */
-    @WebMethod(operationName = "takeNewUserRegistration")
-    User takeNewUserRegistration(
+    @WebMethod(operationName = "takeMembershipEvents")
+    MembershipBatch takeMembershipEvents(
             @WebParam(name = "username", partName = "username") String username,
-            @WebParam(name = "token", partName = "token") String token)
+            @WebParam(name = "token", partName = "token") String token,
+            @WebParam(name = "after", partName = "after") long after,
+            @WebParam(name = "maxBatchSize", partName = "maxBatchSize") int maxBatchSize,
+            @WebParam(name = "timeout", partName = "timeout") long timeout)
             throws PeerExpressSignalingHTTP
     ;
 
     /**
-     * Block the execution until a new user has deregistered, and return it.
+     * Set the roster of a user: the long polling of the user then only returns the events
+     * of the users of its roster. The events are returned from the sequence number returned
+     * by this operation, so the user should then look up the users of its roster.
      * @param username the username of the user in the community
      * @param token the registration token of the user
-     * @return the first user in the queue that has deregistered
+     * @param roster the usernames of the users whose events are returned, or an empty list
+     *               to return the events of the whole directory again
+     * @return the sequence number up to which the user is considered to have read the log
      * @throws PeerExpressSignalingHTTP if an error occurred
      */
-    @WebMethod(operationName = "takeNewUserDeregistration")
-    User takeNewUserDeregistration(
+    @WebMethod(operationName = "setRoster")
+    long setRoster(
             @WebParam(name = "username", partName = "username") String username,
-            @WebParam(name = "token", partName = "token") String token)
+            @WebParam(name = "token", partName = "token") String token,
+            @WebParam(name = "roster", partName = "roster") List<String> roster)
             throws PeerExpressSignalingHTTP
     ;
 
+    /**
+     * Get the partitions of the directory among the signaling servers. The registration,
+     * the token checks and the long polling of a user must be sent to the server of its
+     * partition, whose log also merges the events of the other partitions.
+     * @return the routing table of the partitions
+     */
+    @WebMethod(operationName = "getRoutingTable")
+    RoutingTable getRoutingTable();
+
 }
@@ -13,6 +13,11 @@ public class PeerExpressSignalingHTTP extends Exception {
      */
     private int httpCode;
 
+    /**
+     * the time in milliseconds after which the request may be retried, or 0 if unknown
+     */
+    private long retryAfter;
+
     /**
      * Constructor.
      * @param message the message of the error
@@ -23,6 +28,17 @@ public class PeerExpressSignalingHTTP extends Exception {
         this.httpCode = httpCode;
     }
 
+    /**
+     * Constructor.
+     * @param httpCode the HTTP status code
+     * @param message the message of the error
+     * @param retryAfter the time in milliseconds after which the request may be retried
+     */
+    public PeerExpressSignalingHTTP(int httpCode, String message, long retryAfter) {
+        this(httpCode, message);
+        this.retryAfter = retryAfter;
+    }
+
     /**
      * Constructor.
      * @param httpCode the HTTP status code
@@ -39,4 +55,12 @@ public class PeerExpressSignalingHTTP extends Exception {
         return httpCode;
     }
 
+    /**
+     * Get the time after which the request may be retried, given when the server is overloaded.
+     * @return the time in milliseconds, or 0 if unknown
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
 }
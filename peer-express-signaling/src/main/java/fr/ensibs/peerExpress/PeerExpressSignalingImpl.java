@@ -1,9 +1,21 @@
 package fr.ensibs.peerExpress;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.UUID;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.jws.WebService;
+import javax.xml.ws.WebServiceException;
 
 /**
  * A web service allowing the signaling phase before the peer-to-peer
@@ -15,82 +27,862 @@ import javax.jws.WebService;
 public class PeerExpressSignalingImpl implements PeerExpressSignaling {
 
     /**
-     * the list of registered users
+     * the maximum number of events returned by a batched long-poll
      */
-    private HashMap<String, User> registeredUsers = new HashMap<>();
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * the maximum time in milliseconds a batched long-poll may wait
+     */
+    private static final long MAX_TIMEOUT = 60000;
+
+    /**
+     * the duration in milliseconds of a registration lease
+     */
+    private static final long LEASE_DURATION = 60000;
+
+    /**
+     * the precision in milliseconds of the expiration of the leases
+     */
+    private static final long LEASE_TICK = 1000;
+
+    /**
+     * the maximum number of users or changes returned by a directory request
+     */
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * the maximum number of users in the roster of a user
+     */
+    private static final int MAX_ROSTER_SIZE = 1000;
+
+    /**
+     * the maximum number of users registered or unregistered by a batch request
+     */
+    private static final int MAX_BATCH_USERS = 1000;
+
+    /**
+     * the maximum time in milliseconds a follower waits for a forwarded change to be replicated back
+     */
+    private static final long REPLICATION_TIMEOUT = 5000;
+
+    /**
+     * the registered users identified by their username, shared by all the request threads
+     * of the endpoint and ordered to be read page by page or searched by prefix
+     */
+    private final DirectoryStore registeredUsers;
+
+    /**
+     * the lock making the batch requests atomic, shared by the changes of single users
+     * and taken exclusively by the changes of a batch of users
+     */
+    private final ReadWriteLock directoryLock = new ReentrantReadWriteLock();
+
+    /**
+     * the log of the registrations and deregistrations, on which each registered user has a
+     * cursor, and whose last sequence number is the version of the directory
+     */
+    private final MembershipLog membershipLog;
+
+    /**
+     * the journal of the changes of the directory, null if the directory is not persisted
+     */
+    private final DirectoryJournal journal;
+
+    /**
+     * the leader server to which the changes of the directory are forwarded, null if this server is the leader
+     */
+    private final PeerExpressSignaling leader;
+
+    /**
+     * the addresses of the signaling services of the partitions of the directory,
+     * empty if the directory is not partitioned
+     */
+    private final List<String> partitions;
+
+    /**
+     * the index of the partition of the directory held by this server
+     */
+    private final int partition;
+
+    /**
+     * the last list of registered users built by getRegisteredUsers, shared by
+     * the readers until the version of the directory changes
+     */
+    private volatile DirectorySnapshot directorySnapshot = new DirectorySnapshot(-1, new ArrayList<User>());
+
+    /**
+     * the lock held while building the list of registered users, so that it is built once for all the readers
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * the registration leases of the users, unregistering the users that have not renewed them
+     */
+    private final LeaseWheel leases = new LeaseWheel(LEASE_DURATION, LEASE_TICK, this::expire);
+
+    /**
+     * the admission control of the requests, except the long polling requests and the
+     * requests of the registered users keeping or leaving their registration
+     */
+    private final AdmissionControl admission;
+
+    /**
+     * the permits of the long polling requests that may wait at the same time
+     */
+    private final Semaphore pollPermits;
+
+    /**
+     * the metrics of the requests and of the directory
+     */
+    private final SignalingMetrics metrics;
+
+    /**
+     * true if the service has been closed
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     * @param maxPolls the maximum number of long polling requests that may wait at the same time
+     * @param admission the admission control of the requests
+     * @param registeredUsers the store of the registered users, possibly reopened at a given version
+     * @param dataDirectory the directory where the directory of users is persisted, or null
+     *                      to keep it only in memory
+     * @param leader the leader server to which the changes of the directory are forwarded, or null
+     *               if this server is the leader; the directory of a follower is not persisted
+     * @param partitions the addresses of the signaling services of the partitions of the
+     *                   directory, or an empty list if the directory is not partitioned
+     * @param partition the index of the partition held by this server
+     * @throws IOException if the persisted directory cannot be recovered
+     */
+    public PeerExpressSignalingImpl(int maxPolls, AdmissionControl admission, DirectoryStore registeredUsers,
+                                    File dataDirectory, PeerExpressSignaling leader, List<String> partitions,
+                                    int partition) throws IOException {
+        this.pollPermits = new Semaphore(maxPolls);
+        this.admission = admission;
+        this.registeredUsers = registeredUsers;
+        this.leader = leader;
+        this.partitions = partitions;
+        this.partition = partition;
+        if (dataDirectory == null || leader != null) {
+            this.journal = null;
+            this.membershipLog = new MembershipLog(0);
+        } else {
+            long start = System.nanoTime();
+            this.journal = new DirectoryJournal(dataDirectory);
+            long version = this.journal.recover(this.registeredUsers);
+            this.membershipLog = new MembershipLog(version);
+            int count = 0;
+            for (User user : this.registeredUsers.values()) {
+                this.membershipLog.openCursor(user.getUsername());
+                this.leases.renew(user.getUsername(), user.getToken());
+                count++;
+            }
+            this.journal.open(this.membershipLog::getLastSequence, this.registeredUsers::values);
+            System.out.println("Recovered " + count + " users at version " + version + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        this.metrics = new SignalingMetrics(() -> maxPolls - this.pollPermits.availablePermits(),
+                admission::getRejected, () -> this.registeredUsers.values().size(), this.membershipLog);
+    }
 
     @Override
     public String registerUser(String username, String host, int port) throws PeerExpressSignalingHTTP {
-        if (username == null || host == null)
-            throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
+        long start = System.nanoTime();
+        this.admission.acquire(1);
+        try {
+            if (username == null || host == null)
+                throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
 
-        if (port < 0 || port > 65535)
-            throw new PeerExpressSignalingHTTP(400, "The port number is invalid");
+            if (port < 0 || port > 65535)
+                throw new PeerExpressSignalingHTTP(400, "The port number is invalid");
 
-        if (this.registeredUsers.containsKey(username))
-            throw new PeerExpressSignalingHTTP(409, "The username is already taken");
+            this.checkPartition(username);
+            if (this.leader != null) {
+                String token = this.forward(() -> this.leader.registerUser(username, host, port));
+                this.awaitReplication(username, token);
+                return token;
+            }
 
-        String registrationId = UUID.randomUUID().toString();
-        User user = new User(username, host, port, registrationId);
+            User user = RegistrationTokens.issue(username, host, port);
 
-        for (User registeredUser : this.registeredUsers.values())
-            registeredUser.addNewUserRegistration(user);
+            long sequence;
+            this.directoryLock.readLock().lock();
+            try {
+                // check and insert in one step so that two concurrent registrations cannot take the same username
+                if (this.registeredUsers.putIfAbsent(user) != null)
+                    throw new PeerExpressSignalingHTTP(409, "The username is already taken");
 
-        this.registeredUsers.put(username, user);
-        return registrationId;
+                this.membershipLog.openCursor(username);
+                sequence = this.membershipLog.append(MembershipEventType.JOINED, user);
+            } finally {
+                this.directoryLock.readLock().unlock();
+            }
+            // the lease is granted once the directory lock is released, so as not to take the lock of the lease
+            // wheel under it; a lease left from a previous registration of the username may expire meanwhile,
+            // but it carries the previous token and does not expire this registration
+            this.leases.renew(username, user.getToken());
+            this.metrics.recordRegistrations(1);
+            if (this.journal != null) {
+                this.journal.appendRegistration(sequence, user);
+                this.syncJournal();
+            }
+
+            return user.getToken();
+        } finally {
+            this.admission.release();
+            this.metrics.recordLatency(SignalingMetrics.Operation.REGISTER_USER, start);
+        }
     }
 
     @Override
     public void unregisterUser(String username, String token) throws PeerExpressSignalingHTTP {
-        if (username == null || token == null)
+        long start = System.nanoTime();
+        try {
+            if (this.leader != null) {
+                this.forward(() -> {
+                    this.leader.unregisterUser(username, token);
+                    return null;
+                });
+                this.awaitReplication(username, null);
+                return;
+            }
+
+            User user = this.getAuthenticatedUser(username, token);
+
+            if (!this.deregister(user))
+                throw new PeerExpressSignalingHTTP(404, "The user does not exist");
+            if (this.journal != null)
+                this.syncJournal();
+        } finally {
+            this.metrics.recordLatency(SignalingMetrics.Operation.UNREGISTER_USER, start);
+        }
+    }
+
+    @Override
+    public ArrayList<String> registerUsers(List<Registration> registrations) throws PeerExpressSignalingHTTP {
+        if (registrations == null || registrations.isEmpty())
             throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
 
-        User user = this.registeredUsers.get(username);
-        if (user == null)
-            throw new PeerExpressSignalingHTTP(404, "The user does not exist");
+        if (registrations.size() > MAX_BATCH_USERS)
+            throw new PeerExpressSignalingHTTP(400, "The batch is too large");
 
-        if (!token.equals(user.getToken()))
-            throw new PeerExpressSignalingHTTP(401, "The registration token is incorrect");
+        long start = System.nanoTime();
+        this.admission.acquire(registrations.size());
+        try {
+            Set<String> usernames = new HashSet<>();
+            for (Registration registration : registrations) {
+                if (registration == null || registration.getUsername() == null || registration.getHost() == null)
+                    throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
 
-        this.registeredUsers.remove(username);
+                if (registration.getPort() < 0 || registration.getPort() > 65535)
+                    throw new PeerExpressSignalingHTTP(400, "The port number is invalid");
 
-        for (User registeredUser : this.registeredUsers.values())
-            registeredUser.addNewUserDeregistration(user);
+                this.checkPartition(registration.getUsername());
+                if (!usernames.add(registration.getUsername()))
+                    throw new PeerExpressSignalingHTTP(400, "The username " + registration.getUsername()
+                            + " appears twice in the batch");
+            }
+
+            if (this.leader != null) {
+                ArrayList<String> tokens = this.forward(() -> this.leader.registerUsers(registrations));
+                // the events of the batch are replicated in order, so the batch is replicated with its last event
+                this.awaitReplication(registrations.get(registrations.size() - 1).getUsername(),
+                        tokens.get(tokens.size() - 1));
+                return tokens;
+            }
+
+            List<User> users = new ArrayList<>();
+            for (Registration registration : registrations)
+                users.add(RegistrationTokens.issue(registration.getUsername(), registration.getHost(),
+                        registration.getPort()));
+
+            long firstSequence;
+            this.directoryLock.writeLock().lock();
+            try {
+                for (User user : users) {
+                    if (this.registeredUsers.containsKey(user.getUsername()))
+                        throw new PeerExpressSignalingHTTP(409, "The username " + user.getUsername()
+                                + " is already taken");
+                }
+                for (User user : users) {
+                    this.registeredUsers.put(user);
+                    this.membershipLog.openCursor(user.getUsername());
+                }
+                firstSequence = this.membershipLog.appendAll(MembershipEventType.JOINED, users);
+            } finally {
+                this.directoryLock.writeLock().unlock();
+            }
+
+            ArrayList<String> tokens = new ArrayList<>();
+            for (User user : users) {
+                this.leases.renew(user.getUsername(), user.getToken());
+                tokens.add(user.getToken());
+            }
+            this.metrics.recordRegistrations(users.size());
+            if (this.journal != null) {
+                this.journal.appendBatch(true, firstSequence, users);
+                this.syncJournal();
+            }
+            return tokens;
+        } finally {
+            this.admission.release();
+            this.metrics.recordLatency(SignalingMetrics.Operation.REGISTER_USERS, start);
+        }
     }
 
     @Override
-    public ArrayList<User> getRegisteredUsers() {
-        return new ArrayList<>(this.registeredUsers.values());
+    public void unregisterUsers(List<Deregistration> deregistrations) throws PeerExpressSignalingHTTP {
+        if (deregistrations == null || deregistrations.isEmpty())
+            throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
+
+        if (deregistrations.size() > MAX_BATCH_USERS)
+            throw new PeerExpressSignalingHTTP(400, "The batch is too large");
+
+        long start = System.nanoTime();
+        try {
+            if (this.leader != null) {
+                this.forward(() -> {
+                    this.leader.unregisterUsers(deregistrations);
+                    return null;
+                });
+                this.awaitReplication(deregistrations.get(deregistrations.size() - 1).getUsername(), null);
+                return;
+            }
+
+            List<User> users = new ArrayList<>();
+            long firstSequence;
+            this.directoryLock.writeLock().lock();
+            try {
+                // every user is checked before any is removed, the single changes being blocked meanwhile
+                Set<String> usernames = new HashSet<>();
+                for (Deregistration deregistration : deregistrations) {
+                    if (deregistration == null)
+                        throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
+
+                    User user = this.getAuthenticatedUser(deregistration.getUsername(), deregistration.getToken());
+                    if (!usernames.add(user.getUsername()))
+                        throw new PeerExpressSignalingHTTP(400, "The username " + user.getUsername()
+                                + " appears twice in the batch");
+                    users.add(user);
+                }
+                for (User user : users) {
+                    this.registeredUsers.remove(user);
+                    this.membershipLog.closeCursor(user.getUsername());
+                }
+                firstSequence = this.membershipLog.appendAll(MembershipEventType.LEFT, users);
+            } finally {
+                this.directoryLock.writeLock().unlock();
+            }
+            for (User user : users)
+                this.leases.cancel(user.getUsername(), user.getToken());
+            this.metrics.recordDeregistrations(users.size());
+
+            if (this.journal != null) {
+                this.journal.appendBatch(false, firstSequence, users);
+                this.syncJournal();
+            }
+        } finally {
+            this.metrics.recordLatency(SignalingMetrics.Operation.UNREGISTER_USERS, start);
+        }
     }
 
     @Override
-    public User takeNewUserRegistration(String username, String token) throws PeerExpressSignalingHTTP {
-        if (username == null || token == null)
-            throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
+    public long renewLease(String username, String token) throws PeerExpressSignalingHTTP {
+        long start = System.nanoTime();
+        try {
+            if (this.leader != null)
+                return this.forward(() -> this.leader.renewLease(username, token));
 
-        User user = this.registeredUsers.get(username);
-        if (user == null)
-            throw new PeerExpressSignalingHTTP(404, "The user does not exist");
+            User user = this.getAuthenticatedUser(username, token);
+            // the user may have expired since it was authenticated, in which case it must register again
+            if (!this.leases.renew(username, user.getToken(), name -> {
+                User current = this.registeredUsers.get(name);
+                return current != null && current.hasSameToken(user);
+            }))
+                throw new PeerExpressSignalingHTTP(404, "The user does not exist");
+            return LEASE_DURATION;
+        } finally {
+            this.metrics.recordLatency(SignalingMetrics.Operation.RENEW_LEASE, start);
+        }
+    }
 
-        if (!token.equals(user.getToken()))
-            throw new PeerExpressSignalingHTTP(401, "The registration token is incorrect");
+    @Override
+    public ArrayList<User> getRegisteredUsers() throws PeerExpressSignalingHTTP {
+        long start = System.nanoTime();
+        // the whole directory costs as much as its pages, its size being read from the last built list
+        this.admission.acquire(1 + this.directorySnapshot.users.size() / MAX_PAGE_SIZE);
+        try {
+            DirectorySnapshot snapshot = this.directorySnapshot;
+            long version = this.membershipLog.getLastSequence();
+            if (snapshot.version == version)
+                return snapshot.users;
+            synchronized (this.snapshotLock) {
+                // the readers waiting for the lock use the list built by the first one
+                snapshot = this.directorySnapshot;
+                version = this.membershipLog.getLastSequence();
+                if (snapshot.version != version) {
+                    // every change of the directory is made before its version is incremented, so a list
+                    // built after reading the version contains at least all the changes up to this version
+                    snapshot = new DirectorySnapshot(version, new ArrayList<>(this.registeredUsers.values()));
+                    this.directorySnapshot = snapshot;
+                }
+                return snapshot.users;
+            }
+        } finally {
+            this.admission.release();
+            this.metrics.recordLatency(SignalingMetrics.Operation.GET_REGISTERED_USERS, start);
+        }
+    }
+
+    @Override
+    public User lookupUser(String username) throws PeerExpressSignalingHTTP {
+        long start = System.nanoTime();
+        this.admission.acquire(1);
+        try {
+            if (username == null)
+                throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
+
+            this.checkPartition(username);
+            User user = this.registeredUsers.get(username);
+            if (user == null)
+                throw new PeerExpressSignalingHTTP(404, "The user does not exist");
+            return user;
+        } finally {
+            this.admission.release();
+            this.metrics.recordLatency(SignalingMetrics.Operation.LOOKUP_USER, start);
+        }
+    }
+
+    @Override
+    public ArrayList<User> searchUsers(String prefix, int limit) throws PeerExpressSignalingHTTP {
+        long start = System.nanoTime();
+        this.admission.acquire(1);
+        try {
+            if (prefix == null)
+                throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
+
+            if (limit <= 0)
+                throw new PeerExpressSignalingHTTP(400, "The limit must be positive");
 
-        return user.takeNewUserRegistration();
+            // the usernames starting with the prefix are contiguous in the ordered directory
+            ArrayList<User> users = new ArrayList<>();
+            Iterator<User> iterator = this.registeredUsers.iterator(prefix, true);
+            while (iterator.hasNext() && users.size() < Math.min(limit, MAX_PAGE_SIZE)) {
+                User user = iterator.next();
+                if (!user.getUsername().startsWith(prefix))
+                    break;
+                users.add(user);
+            }
+            return users;
+        } finally {
+            this.admission.release();
+            this.metrics.recordLatency(SignalingMetrics.Operation.SEARCH_USERS, start);
+        }
     }
 
     @Override
-    public User takeNewUserDeregistration(String username, String token) throws PeerExpressSignalingHTTP {
+    public DirectoryDelta getRegisteredUsersSince(long version, int pageSize) throws PeerExpressSignalingHTTP {
+        long start = System.nanoTime();
+        this.admission.acquire(1);
+        try {
+            if (pageSize <= 0)
+                throw new PeerExpressSignalingHTTP(400, "The page size must be positive");
+
+            int limit = Math.min(pageSize, MAX_PAGE_SIZE);
+            List<MembershipEvent> events = version >= 0 ? this.membershipLog.changesSince(version, limit) : null;
+            if (events == null)
+                return this.readPage(null, limit);
+
+            // only keep the last change of each user
+            Map<String, User> added = new LinkedHashMap<>();
+            Set<String> removed = new LinkedHashSet<>();
+            for (MembershipEvent event : events) {
+                User user = event.getUser();
+                if (event.getType() == MembershipEventType.JOINED) {
+                    added.put(user.getUsername(), user);
+                    removed.remove(user.getUsername());
+                } else {
+                    added.remove(user.getUsername());
+                    removed.add(user.getUsername());
+                }
+                version = event.getSequence();
+            }
+            return new DirectoryDelta(version, false, new ArrayList<>(added.values()), new ArrayList<>(removed),
+                    events.size() < limit);
+        } finally {
+            this.admission.release();
+            this.metrics.recordLatency(SignalingMetrics.Operation.GET_REGISTERED_USERS_SINCE, start);
+        }
+    }
+
+    @Override
+    public DirectoryDelta getRegisteredUsersPage(String after, int pageSize) throws PeerExpressSignalingHTTP {
+        long start = System.nanoTime();
+        this.admission.acquire(1);
+        try {
+            if (pageSize <= 0)
+                throw new PeerExpressSignalingHTTP(400, "The page size must be positive");
+
+            return this.readPage(after, Math.min(pageSize, MAX_PAGE_SIZE));
+        } finally {
+            this.admission.release();
+            this.metrics.recordLatency(SignalingMetrics.Operation.GET_REGISTERED_USERS_PAGE, start);
+        }
+    }
+
+    @Override
+    public MembershipBatch takeMembershipEvents(String username, String token, long after, int maxBatchSize,
+                                                long timeout) throws PeerExpressSignalingHTTP {
+        this.getAuthenticatedUser(username, token);
+        if (maxBatchSize <= 0 || timeout < 0)
+            throw new PeerExpressSignalingHTTP(400, "The batch size and timeout must be positive");
+
+        if (this.membershipLog.hasMissedEvents(username, after))
+            throw new PeerExpressSignalingHTTP(410, "The directory must be synchronized again");
+
+        if (!this.pollPermits.tryAcquire())
+            throw this.admission.reject("Too many pending requests");
+
+        try {
+            MembershipBatch batch = this.membershipLog.take(username, after,
+                    Math.min(maxBatchSize, MAX_BATCH_SIZE), Math.min(timeout, MAX_TIMEOUT));
+            if (batch == null)
+                throw new PeerExpressSignalingHTTP(404, "The user does not exist");
+            if (batch == MembershipLog.MISSED_EVENTS)
+                throw new PeerExpressSignalingHTTP(410, "The directory must be synchronized again");
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PeerExpressSignalingHTTP(503, "The request has been interrupted");
+        } finally {
+            this.pollPermits.release();
+        }
+    }
+
+    @Override
+    public long setRoster(String username, String token, List<String> roster) throws PeerExpressSignalingHTTP {
+        long start = System.nanoTime();
+        this.admission.acquire(1);
+        try {
+            this.getAuthenticatedUser(username, token);
+            if (roster != null && roster.size() > MAX_ROSTER_SIZE)
+                throw new PeerExpressSignalingHTTP(400, "The roster is too large");
+
+            long sequence = this.membershipLog.setRoster(username,
+                    roster == null || roster.isEmpty() ? null : new HashSet<>(roster));
+            if (sequence < 0)
+                throw new PeerExpressSignalingHTTP(404, "The user does not exist");
+            return sequence;
+        } finally {
+            this.admission.release();
+            this.metrics.recordLatency(SignalingMetrics.Operation.SET_ROSTER, start);
+        }
+    }
+
+    @Override
+    public RoutingTable getRoutingTable() {
+        return new RoutingTable(this.partitions);
+    }
+
+    /**
+     * Stop the expiration of the leases, answer the pending long polling requests
+     * and write the pending journal records, before the service is shut down.
+     */
+    public void close() {
+        this.closed = true;
+        this.leases.close();
+        this.membershipLog.close();
+        if (this.journal != null)
+            this.journal.close();
+        try {
+            this.registeredUsers.close(this.membershipLog.getLastSequence());
+        } catch (IOException e) {
+            System.err.println("The directory could not be saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tell if the service has been closed.
+     * @return true if and only if the service has been closed
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Apply a registration or deregistration replicated from the leader, unless it has already been applied.
+     * @param type the type of the event, either joined or left
+     * @param sequence the sequence number of the event on the leader
+     * @param user the user concerned by the event
+     */
+    void applyReplicatedEvent(MembershipEventType type, long sequence, User user) {
+        if (sequence <= this.membershipLog.getLastSequence())
+            return;
+
+        String username = user.getUsername();
+        if (type == MembershipEventType.JOINED) {
+            if (this.registeredUsers.put(user) == null)
+                this.membershipLog.openCursor(username);
+        } else {
+            User previous = this.registeredUsers.remove(username);
+            if (previous != null)
+                user = previous;
+            this.membershipLog.closeCursor(username);
+        }
+        this.membershipLog.appendReplicated(type, user, sequence);
+    }
+
+    /**
+     * Replace the directory by the one replicated from the leader. The history of the log
+     * is dropped, so the users polling this server synchronize their directory again.
+     * @param version the version of the directory on the leader
+     * @param users the users of the directory identified by their username
+     */
+    void applyReplicatedDirectory(long version, Map<String, User> users) {
+        for (User user : this.registeredUsers.values()) {
+            if (!users.containsKey(user.getUsername()) && this.registeredUsers.remove(user))
+                this.membershipLog.closeCursor(user.getUsername());
+        }
+
+        List<String> registered = new ArrayList<>();
+        for (User user : users.values()) {
+            User previous = this.registeredUsers.put(user);
+            if (previous == null || !previous.hasSameToken(user))
+                registered.add(user.getUsername());
+        }
+        this.membershipLog.reset(version);
+        this.directorySnapshot = new DirectorySnapshot(-1, new ArrayList<User>());
+        for (String username : registered)
+            this.membershipLog.openCursor(username);
+    }
+
+    /**
+     * Merge a registration or deregistration of another partition of the directory into the log,
+     * so that the users of this partition receive it. The user is not added to the directory.
+     * @param type the type of the event, either joined or left
+     * @param user the user concerned by the event
+     */
+    void applyPartitionEvent(MembershipEventType type, User user) {
+        this.membershipLog.appendRemote(type, new User(user.getUsername(), user.getHost(), user.getPort(), 0, 0));
+    }
+
+    /**
+     * Mark in the log that some events of another partition have been missed, so that
+     * every user of this partition synchronizes its directory again.
+     */
+    void invalidatePartitionEvents() {
+        this.membershipLog.appendGap();
+    }
+
+    /**
+     * Get the metrics of the requests and of the directory.
+     * @return the metrics
+     */
+    public SignalingMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Get the log of the registrations and deregistrations.
+     * @return the membership log
+     */
+    MembershipLog getMembershipLog() {
+        return this.membershipLog;
+    }
+
+    /**
+     * Get the registered users, ordered by username.
+     * @return a live view of the registered users
+     */
+    Collection<User> getUsers() {
+        return this.registeredUsers.values();
+    }
+
+    /**
+     * Forward a change of the directory to the leader.
+     * @param request the request to the leader
+     * @param <T> the type of the result of the request
+     * @return the result of the request
+     * @throws PeerExpressSignalingHTTP if the leader rejected the request or could not be reached
+     */
+    private <T> T forward(LeaderRequest<T> request) throws PeerExpressSignalingHTTP {
+        try {
+            return request.send();
+        } catch (WebServiceException e) {
+            throw new PeerExpressSignalingHTTP(502, "The leader server could not be reached");
+        }
+    }
+
+    /**
+     * Read a page of the directory, with the version of the directory to fetch the changes
+     * made afterwards.
+     * @param after the username after which the page starts, or null to start from the first user
+     * @param limit the maximum number of users of the page
+     * @return the page of the directory
+     */
+    private DirectoryDelta readPage(String after, int limit) {
+        // read the version first, the changes made while reading the page are sent again by the next delta
+        long version = this.membershipLog.getLastSequence();
+        Iterator<User> iterator = this.registeredUsers.iterator(after, false);
+        ArrayList<User> page = new ArrayList<>();
+        while (page.size() < limit && iterator.hasNext())
+            page.add(iterator.next());
+        return new DirectoryDelta(version, true, page, new ArrayList<String>(), !iterator.hasNext());
+    }
+
+    /**
+     * Wait until a change forwarded to the leader has been replicated to this server, so that
+     * the user can use this server right away. The change is made on the leader even if the
+     * wait times out.
+     * @param username the username of the user concerned by the change
+     * @param token the registration token of the user once registered, or null once unregistered
+     */
+    private void awaitReplication(String username, String token) {
+        long deadline = System.currentTimeMillis() + REPLICATION_TIMEOUT;
+        try {
+            while (true) {
+                // read the version first, the directory is changed before the version is incremented
+                long version = this.membershipLog.getLastSequence();
+                User user = this.registeredUsers.get(username);
+                boolean replicated = token == null ? user == null : user != null && user.hasToken(token);
+                long remaining = deadline - System.currentTimeMillis();
+                if (replicated || remaining <= 0 || this.closed)
+                    return;
+                this.membershipLog.awaitAfter(version, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Remove a user from the directory, broadcast its deregistration and release its cursor.
+     * @param user the user to remove
+     * @return true if the user was removed, false if it had already been removed
+     */
+    private boolean deregister(User user) {
+        long sequence;
+        this.directoryLock.readLock().lock();
+        try {
+            // only the thread that actually removes the user broadcasts its deregistration
+            if (!this.registeredUsers.remove(user))
+                return false;
+
+            this.membershipLog.closeCursor(user.getUsername());
+            sequence = this.membershipLog.append(MembershipEventType.LEFT, user);
+        } finally {
+            this.directoryLock.readLock().unlock();
+        }
+        this.leases.cancel(user.getUsername(), user.getToken());
+        this.metrics.recordDeregistrations(1);
+        if (this.journal != null)
+            this.journal.appendDeregistration(sequence, user);
+        return true;
+    }
+
+    /**
+     * Wait until the changes of the directory made so far are persisted.
+     * @throws PeerExpressSignalingHTTP if the journal could not be written
+     */
+    private void syncJournal() throws PeerExpressSignalingHTTP {
+        try {
+            this.journal.sync();
+        } catch (IOException e) {
+            throw new PeerExpressSignalingHTTP(500, "The directory could not be persisted");
+        }
+    }
+
+    /**
+     * Unregister a user whose lease has expired, called under the lock of the lease wheel once
+     * the lease has been checked not to have been renewed. The user is only unregistered if it still has
+     * the token the lease was granted for, and not if it has registered again meanwhile. The deregistration
+     * is journaled but not synced, so as not to hold the lease wheel: if it is lost in a crash, the user
+     * is recovered with a new lease and expires again. The expirations are only counted by the metrics,
+     * nothing being printed under the lock of the lease wheel.
+     * @param username the username of the user
+     * @param token the registration token the lease was granted for
+     */
+    private void expire(String username, String token) {
+        User user = this.registeredUsers.get(username);
+        if (user != null && user.hasToken(token) && this.deregister(user))
+            this.metrics.recordExpiration();
+    }
+
+    /**
+     * Check that a user belongs to the partition of the directory held by this server.
+     * @param username the username of the user
+     * @throws PeerExpressSignalingHTTP if the user belongs to another partition
+     */
+    private void checkPartition(String username) throws PeerExpressSignalingHTTP {
+        if (!this.partitions.isEmpty() && RoutingTable.partitionOf(username, this.partitions.size()) != this.partition)
+            throw new PeerExpressSignalingHTTP(421, "The user belongs to another partition");
+    }
+
+    /**
+     * Get a registered user and check its registration token.
+     * @param username the username of the user in the community
+     * @param token the registration token of the user
+     * @return the registered user
+     * @throws PeerExpressSignalingHTTP if the parameters are missing, the user does not exist
+     * or the token is incorrect
+     */
+    private User getAuthenticatedUser(String username, String token) throws PeerExpressSignalingHTTP {
         if (username == null || token == null)
             throw new PeerExpressSignalingHTTP(400, "The parameters must be specified");
 
+        this.checkPartition(username);
         User user = this.registeredUsers.get(username);
         if (user == null)
             throw new PeerExpressSignalingHTTP(404, "The user does not exist");
 
-        if (!token.equals(user.getToken()))
+        if (!user.hasToken(token))
             throw new PeerExpressSignalingHTTP(401, "The registration token is incorrect");
 
-        return user.takeNewUserDeregistration();
+        return user;
+    }
+
+    /**
+     * A request forwarded to the leader server.
+     * @param <T> the type of the result of the request
+     */
+    private interface LeaderRequest<T> {
+
+        /**
+         * Send the request to the leader.
+         * @return the result of the request
+         * @throws PeerExpressSignalingHTTP if the leader rejected the request
+         */
+        T send() throws PeerExpressSignalingHTTP;
+
+    }
+
+    /**
+     * An immutable list of registered users at a given version of the directory.
+     */
+    private static class DirectorySnapshot {
+
+        /**
+         * the version of the directory
+         */
+        private final long version;
+
+        /**
+         * the registered users, which must never be modified
+         */
+        private final ArrayList<User> users;
+
+        /**
+         * Constructor.
+         * @param version the version of the directory
+         * @param users the registered users
+         */
+        private DirectorySnapshot(long version, ArrayList<User> users) {
+            this.version = version;
+            this.users = users;
+        }
+
     }
 
 }
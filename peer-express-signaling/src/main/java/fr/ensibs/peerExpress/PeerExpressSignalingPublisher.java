@@ -1,8 +1,26 @@
 package fr.ensibs.peerExpress;
 
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.xml.namespace.QName;
 import javax.xml.ws.Endpoint;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Web service publisher of the Peer Express signaling server.
@@ -14,23 +32,115 @@ public class PeerExpressSignalingPublisher {
      */
     private final static String SERVICE = "PeerExpressSignaling";
 
+    /**
+     * the path of the stream of membership events, next to the service
+     */
+    private final static String EVENTS = "events";
+
+    /**
+     * the path of the replication stream of the leader, next to the service
+     */
+    private final static String REPLICATION = "replication";
+
+    /**
+     * the path of the metrics of the server, next to the service
+     */
+    private final static String METRICS = "metrics";
+
+    /**
+     * the domain of the name of the metrics MBean
+     */
+    private final static String METRICS_DOMAIN = "fr.ensibs.peerExpress";
+
+    /**
+     * the qualified name of the service in its WSDL description
+     */
+    private final static QName SERVICE_NAME = new QName("http://peerExpress.ensibs.fr/", SERVICE);
+
+    /**
+     * the default maximum number of long polling requests that may wait at the same time
+     */
+    private final static int DEFAULT_MAX_POLLS = 10000;
+
+    /**
+     * the default number of requests admitted per second
+     */
+    private final static int DEFAULT_MAX_RATE = 1000;
+
+    /**
+     * the default maximum number of requests running at the same time
+     */
+    private final static int DEFAULT_MAX_REQUESTS = 200;
+
     /**
      * The point of entry of the publisher.
      *
      * @param args the command-line arguments
      */
     public static void main(String[] args) {
-        if (args.length != 1 || "-h".equals(args[0]))
+        if (args.length < 1 || args.length % 2 == 0 || "-h".equals(args[0]))
             usage();
 
         try {
             int port = Integer.parseInt(args[0]);
-            new PeerExpressSignalingPublisher(port);
+            int maxPolls = DEFAULT_MAX_POLLS;
+            int maxRate = DEFAULT_MAX_RATE;
+            int maxRequests = DEFAULT_MAX_REQUESTS;
+            File dataDirectory = null;
+            boolean offHeap = false;
+            String leader = null;
+            String secret = null;
+            List<String> partitions = Collections.emptyList();
+            int partition = 0;
+            for (int i = 1; i < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--max-polls":
+                        maxPolls = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--max-rate":
+                        maxRate = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--max-requests":
+                        maxRequests = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--data":
+                        dataDirectory = new File(args[i + 1]);
+                        break;
+                    case "--store":
+                        if (!"heap".equals(args[i + 1]) && !"off-heap".equals(args[i + 1]))
+                            usage();
+                        offHeap = "off-heap".equals(args[i + 1]);
+                        break;
+                    case "--leader":
+                        leader = args[i + 1];
+                        break;
+                    case "--secret":
+                        secret = args[i + 1];
+                        break;
+                    case "--partitions":
+                        partitions = Arrays.asList(args[i + 1].split(","));
+                        break;
+                    case "--partition":
+                        partition = Integer.parseInt(args[i + 1]);
+                        break;
+                    default:
+                        usage();
+                }
+            }
+            if (maxRate < 1 || maxRequests < 1)
+                usage();
+            if (leader != null && (secret == null || dataDirectory != null))
+                usage();
+            if (!partitions.isEmpty() && (secret == null || leader != null || partition < 0
+                    || partition >= partitions.size()))
+                usage();
+            new PeerExpressSignalingPublisher(port, maxPolls, new AdmissionControl(maxRate, maxRequests), dataDirectory,
+                    offHeap, leader, secret, partitions, partition);
         } catch (NumberFormatException e) {
-            System.err.println("The port is not a number: " + args[0]);
+            System.err.println("The arguments are not numbers: " + String.join(" ", args));
             usage();
-        } catch (UnknownHostException e) {
-            System.err.println("The local hostname is not found");
+        } catch (IOException e) {
+            System.err.println("The service could not be published: " + e.getMessage());
         }
     }
 
@@ -38,22 +148,140 @@ public class PeerExpressSignalingPublisher {
      * Print a usage message and exit.
      */
     private static void usage() {
-        System.out.println("Usage: java PeerExpressSignalingPublisher <port>");
-        System.out.println("Launch a notification broker server");
+        System.out.println("Usage: java PeerExpressSignalingPublisher <port> [--max-polls <max polls>]"
+                + " [--max-rate <max rate>] [--max-requests <max requests>] [--data <data path>] [--store <heap|off-heap>] [--secret <secret>] [--leader <leader url> | --partitions <urls> --partition <index>]");
+        System.out.println("Launch a notification broker server, with:");
+        System.out.println("<port>        the port number where the service is published");
+        System.out.println("<max polls>   (optional) the maximum number of long polling requests waiting at the same time");
+        System.out.println("<max rate>    (optional) the number of requests admitted per second, the others being");
+        System.out.println("              rejected with a time after which to retry");
+        System.out.println("<max requests> (optional) the maximum number of requests running at the same time");
+        System.out.println("<data path>   (optional) the directory where the registered users are persisted across restarts,");
+        System.out.println("              only on the leader server");
+        System.out.println("heap|off-heap (optional) where the registered users are held, off-heap in a memory-mapped file");
+        System.out.println("              reopened at restart if the server was stopped cleanly, heap by default");
+        System.out.println("<secret>      (optional) the secret shared by the leader and follower servers, required to replicate");
+        System.out.println("<leader url>  (optional) the address of the leader service, to launch a follower server");
+        System.out.println("<urls>        (optional) the comma-separated addresses of the services of the partitions of the");
+        System.out.println("              directory, ordered by index, to launch the server of one of them");
+        System.out.println("<index>       (optional) the index of the partition held by the server, from 0");
         System.exit(-1);
     }
 
     /**
      * Constructor.
      * @param port the port number where the service is published
-     * @throws UnknownHostException if the local hostname is not found
+     * @param maxPolls the maximum number of long polling requests that may wait at the same time
+     * @param admission the admission control of the requests
+     * @param dataDirectory the directory where the registered users are persisted, or null to keep them in memory
+     * @param offHeap true to hold the registered users off-heap in a memory-mapped file, false to hold them on the heap
+     * @param leader the address of the leader service, or null if this server is the leader
+     * @param secret the secret shared by the servers, or null if the directory is not replicated
+     * @param partitions the addresses of the services of the partitions of the directory, or an
+     *                   empty list if the directory is not partitioned
+     * @param partition the index of the partition held by this server
+     * @throws IOException if the local hostname is not found, the port cannot be bound,
+     * the persisted users cannot be recovered or the leader cannot be reached
      */
-    public PeerExpressSignalingPublisher(int port) throws UnknownHostException {
+    public PeerExpressSignalingPublisher(int port, int maxPolls, AdmissionControl admission, File dataDirectory,
+                                         boolean offHeap, String leader, String secret, List<String> partitions, int partition)
+            throws IOException {
         String host = InetAddress.getLocalHost().getHostName();
-        PeerExpressSignaling signaling = new PeerExpressSignalingImpl();
-        String address = "http://" + host + ":" + port + "/ws/" + SERVICE;
-        Endpoint.publish(address, signaling);
-        System.out.println("Web service published and running at: " + address);
+        PeerExpressSignaling leaderService = null;
+        if (leader != null) {
+            try {
+                leaderService = Service.create(new URL(leader + "?wsdl"), SERVICE_NAME).getPort(PeerExpressSignaling.class);
+            } catch (WebServiceException e) {
+                throw new IOException("the leader cannot be reached at " + leader, e);
+            }
+        }
+        PeerExpressSignalingImpl signaling = new PeerExpressSignalingImpl(maxPolls, admission,
+                openDirectoryStore(offHeap, dataDirectory), dataDirectory, leaderService, partitions, partition);
+        ExecutorService executor = newRequestExecutor();
+
+        // the SOAP service and the event stream share the same HTTP server
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        Endpoint endpoint = Endpoint.create(signaling);
+        endpoint.publish(server.createContext("/ws/" + SERVICE));
+        server.createContext("/ws/" + EVENTS, new MembershipStreamHandler(signaling));
+        server.createContext("/ws/" + METRICS, new MetricsHandler(signaling.getMetrics()));
+        if (secret != null && leader == null)
+            server.createContext("/ws/" + REPLICATION, new ReplicationStreamHandler(signaling, secret));
+        server.start();
+        System.out.println("Web service published and running at: http://" + host + ":" + port + "/ws/" + SERVICE);
+        System.out.println("Event stream running at: http://" + host + ":" + port + "/ws/" + EVENTS);
+        System.out.println("Metrics running at: http://" + host + ":" + port + "/ws/" + METRICS);
+        try {
+            ObjectName name = new ObjectName(METRICS_DOMAIN + ":type=SignalingMetrics,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(signaling.getMetrics(), name);
+            System.out.println("Metrics registered over JMX as: " + name);
+        } catch (JMException e) {
+            System.err.println("The metrics could not be registered over JMX: " + e.getMessage());
+        }
+
+        // the follower reads the replication stream next to the leader service
+        if (leader != null) {
+            String replication = URI.create(leader).resolve(REPLICATION).toString();
+            new ReplicationFollower(signaling, replication, secret, false).start();
+            System.out.println("Following the leader at: " + leader);
+        }
+
+        // the events of the other partitions are merged into the log of this one
+        for (int i = 0; i < partitions.size(); i++) {
+            if (i != partition) {
+                String replication = URI.create(partitions.get(i)).resolve(REPLICATION).toString();
+                new ReplicationFollower(signaling, replication, secret, true).start();
+            }
+        }
+        if (!partitions.isEmpty())
+            System.out.println("Holding the partition " + partition + " of " + partitions.size());
+
+        // answer the waiting long polling requests before stopping the service
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            signaling.close();
+            endpoint.stop();
+            server.stop(1);
+            executor.shutdown();
+        }));
+    }
+
+    /**
+     * Open the store of the registered users. The off-heap store is reopened from the data
+     * directory when there is one, and held in a temporary file deleted at exit otherwise.
+     * @param offHeap true to hold the registered users off-heap, false to hold them on the heap
+     * @param dataDirectory the directory where the registered users are persisted, or null
+     * @return the store of the registered users
+     * @throws IOException if the file of the off-heap store cannot be created or mapped
+     */
+    private static DirectoryStore openDirectoryStore(boolean offHeap, File dataDirectory) throws IOException {
+        if (!offHeap)
+            return new HeapDirectoryStore();
+        if (dataDirectory != null) {
+            if (!dataDirectory.isDirectory() && !dataDirectory.mkdirs())
+                throw new IOException("The data directory cannot be created: " + dataDirectory);
+            return new OffHeapDirectoryStore(new File(dataDirectory, "directory"), true);
+        }
+        File file = File.createTempFile("directory", ".store");
+        file.deleteOnExit();
+        new File(file.getPath() + ".overflow").deleteOnExit();
+        return new OffHeapDirectoryStore(file, false);
+    }
+
+    /**
+     * Create the executor running the requests of the service. A long polling request
+     * waits most of the time, so a virtual thread is used per request when the JVM
+     * supports them, a platform thread otherwise: on Java 8, each waiting long polling
+     * request and each open event stream then holds an OS thread.
+     * @return the executor of the requests
+     */
+    static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
     }
 
 }
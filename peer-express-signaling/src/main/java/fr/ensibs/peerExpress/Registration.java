@@ -0,0 +1,70 @@
+package fr.ensibs.peerExpress;
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Represents the registration of a user in a batch of registrations.
+ */
+public class Registration {
+
+    /**
+     * the username of the user in the community
+     */
+    @XmlElement
+    private String username;
+
+    /**
+     * the host address of the local JORAM server of the user
+     */
+    @XmlElement
+    private String host;
+
+    /**
+     * the opened port of the local JORAM server of the user
+     */
+    @XmlElement
+    private int port;
+
+    /**
+     * Constructor, used when the registration is received.
+     */
+    public Registration() {
+    }
+
+    /**
+     * Constructor.
+     * @param username the username of the user in the community
+     * @param host the host address of the local JORAM server of the user
+     * @param port the opened port of the local JORAM server of the user
+     */
+    public Registration(String username, String host, int port) {
+        this.username = username;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Get the username of the user.
+     * @return the username of the user
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Get the host address of the local JORAM server of the user.
+     * @return the host address
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Get the opened port of the local JORAM server of the user.
+     * @return the port number
+     */
+    public int getPort() {
+        return port;
+    }
+
+}
@@ -0,0 +1,205 @@
+package fr.ensibs.peerExpress;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The generation and validation of the registration tokens. A token is 128 random
+ * bits, held as two longs by the server and written as 32 lowercase hexadecimal
+ * digits, which are also the digits of a UUID without its dashes, so that the tokens
+ * written as UUIDs by previous versions are still valid.
+ * <p>
+ * The random bits are drawn from several independent generators picked at random,
+ * so that concurrent registrations do not wait on one shared generator, and the
+ * tokens are checked without allocation and in a time that does not depend on the
+ * position of the first wrong digit.
+ */
+public final class RegistrationTokens {
+
+    /**
+     * the hexadecimal digits
+     */
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * the number of hexadecimal digits of a token
+     */
+    private static final int LENGTH = 32;
+
+    /**
+     * the independent generators of the random bits, whose number is a power of 2
+     */
+    private static final Generator[] GENERATORS = newGenerators();
+
+    /**
+     * Constructor, not used.
+     */
+    private RegistrationTokens() {
+    }
+
+    /**
+     * Create a user with a new registration token.
+     * @param username the username of the user
+     * @param host the host of the user
+     * @param port the port of the user
+     * @return the user
+     */
+    public static User issue(String username, String host, int port) {
+        Generator generator = GENERATORS[ThreadLocalRandom.current().nextInt() & (GENERATORS.length - 1)];
+        return generator.issue(username, host, port);
+    }
+
+    /**
+     * Write a token.
+     * @param high the most significant bits of the token
+     * @param low the least significant bits of the token
+     * @return the 32 hexadecimal digits of the token
+     */
+    public static String format(long high, long low) {
+        char[] digits = new char[LENGTH];
+        for (int i = 0; i < LENGTH / 2; i++) {
+            digits[LENGTH / 2 - 1 - i] = DIGITS[(int) (high >>> (4 * i)) & 0xf];
+            digits[LENGTH - 1 - i] = DIGITS[(int) (low >>> (4 * i)) & 0xf];
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Read half of a token.
+     * @param token the token, as 32 hexadecimal digits or as a UUID
+     * @param high true to read the most significant bits, false to read the least significant bits
+     * @return the bits of the half of the token
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static long parseHalf(String token, boolean high) {
+        long value = 0;
+        int count = 0;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c == '-' && token.length() == LENGTH + 4)
+                continue;
+            int digit = hexDigit(c);
+            if (digit < 0 || ++count > LENGTH)
+                throw new IllegalArgumentException("The token is malformed");
+            if ((count <= LENGTH / 2) == high)
+                value = value << 4 | digit;
+        }
+        if (count != LENGTH)
+            throw new IllegalArgumentException("The token is malformed");
+        return value;
+    }
+
+    /**
+     * Check a token against the token of a user. Every digit is read whatever the
+     * differences, so that the time taken does not tell how much of the token is right.
+     * @param token the token to check, possibly null
+     * @param high the most significant bits of the token of the user
+     * @param low the least significant bits of the token of the user
+     * @return true if and only if the token is the one of the user
+     */
+    public static boolean matches(String token, long high, long low) {
+        if (token == null || (token.length() != LENGTH && token.length() != LENGTH + 4))
+            return false;
+
+        long readHigh = 0;
+        long readLow = 0;
+        int count = 0;
+        boolean valid = true;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c == '-' && token.length() == LENGTH + 4)
+                continue;
+            int digit = hexDigit(c);
+            valid &= digit >= 0;
+            if (count < LENGTH / 2)
+                readHigh = readHigh << 4 | (digit & 0xf);
+            else
+                readLow = readLow << 4 | (digit & 0xf);
+            count++;
+        }
+        return valid & count == LENGTH & ((readHigh ^ high) | (readLow ^ low)) == 0;
+    }
+
+    /**
+     * Get the value of an ASCII hexadecimal digit.
+     * @param c the character
+     * @return the value of the digit, or -1 if the character is not a hexadecimal digit
+     */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Create the generators of the random bits, about two per processor.
+     * @return the generators
+     */
+    private static Generator[] newGenerators() {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2);
+        Generator[] generators = new Generator[count];
+        for (int i = 0; i < count; i++)
+            generators[i] = new Generator();
+        return generators;
+    }
+
+    /**
+     * A generator of tokens, used by one thread at a time.
+     */
+    private static class Generator {
+
+        /**
+         * the source of the random bits, holding its own state, unlike the default source
+         * of some platforms which reads a file shared by all its instances
+         */
+        private final SecureRandom random;
+
+        /**
+         * the random bits of the last token
+         */
+        private final byte[] bits = new byte[LENGTH / 2];
+
+        /**
+         * Constructor.
+         */
+        private Generator() {
+            SecureRandom random;
+            try {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                random = new SecureRandom();
+            }
+            this.random = random;
+        }
+
+        /**
+         * Create a user with a new registration token, whose bits are drawn at once.
+         * @param username the username of the user
+         * @param host the host of the user
+         * @param port the port of the user
+         * @return the user
+         */
+        private synchronized User issue(String username, String host, int port) {
+            long high;
+            long low;
+            // 128 random bits are never all 0, which would mean that the user has no token
+            do {
+                this.random.nextBytes(this.bits);
+                high = 0;
+                low = 0;
+                for (int i = 0; i < 8; i++) {
+                    high = high << 8 | (this.bits[i] & 0xff);
+                    low = low << 8 | (this.bits[8 + i] & 0xff);
+                }
+            } while (high == 0 && low == 0);
+            return new User(username, host, port, high, low);
+        }
+
+    }
+
+}
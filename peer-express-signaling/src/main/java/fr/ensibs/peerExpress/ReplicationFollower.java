@@ -0,0 +1,227 @@
+package fr.ensibs.peerExpress;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The thread of a follower signaling server reading the replication stream of the
+ * leader, and applying its records to the local directory with the sequence numbers
+ * of the leader, so that the users may poll any server from the same position.
+ * The stream is read again from the last applied event when it is broken.
+ * <p>
+ * The server of a partition of the directory also reads the stream of each other
+ * partition, but only merges its events into the local log, without its users.
+ */
+public class ReplicationFollower implements Runnable {
+
+    /**
+     * the time in milliseconds to wait before reconnecting to the leader
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    /**
+     * the time in milliseconds after which the leader is considered gone, longer than its heartbeat period
+     */
+    private static final int READ_TIMEOUT = 60000;
+
+    /**
+     * the signaling service of the follower
+     */
+    private final PeerExpressSignalingImpl signaling;
+
+    /**
+     * the address of the replication stream of the leader
+     */
+    private final String address;
+
+    /**
+     * the secret shared by the servers
+     */
+    private final String secret;
+
+    /**
+     * true if the stream is read from another partition, false if it is read from the leader
+     */
+    private final boolean partition;
+
+    /**
+     * true once the directory of the leader has been received
+     */
+    private boolean initialized;
+
+    /**
+     * the sequence number up to which the stream of another partition has been read
+     */
+    private long position = -1;
+
+    /**
+     * Constructor.
+     * @param signaling the signaling service of the follower
+     * @param address the address of the replication stream of the leader or of the other partition
+     * @param secret the secret shared by the servers
+     * @param partition true if the stream is read from another partition, false if it is read from the leader
+     */
+    public ReplicationFollower(PeerExpressSignalingImpl signaling, String address, String secret, boolean partition) {
+        this.signaling = signaling;
+        this.address = address;
+        this.secret = secret;
+        this.partition = partition;
+    }
+
+    /**
+     * Start following the leader or the other partition in a daemon thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, this.partition ? "partition-follower" : "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!this.signaling.isClosed()) {
+            long after = this.partition ? this.position
+                    : this.initialized ? this.signaling.getMembershipLog().getLastSequence() : -1;
+            try {
+                if (this.partition)
+                    this.merge(after);
+                else
+                    this.follow(after);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("The replication stream of " + this.address + " is broken: " + e.getMessage());
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read the replication stream of the leader until it ends.
+     * @param after the sequence number of the last applied event, or -1 to receive the whole directory
+     * @throws IOException if the stream cannot be opened or is broken
+     */
+    private void follow(long after) throws IOException {
+        HttpURLConnection connection = this.connect(after, true);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Map<String, User> directory = null;
+            long version = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                switch (fields[0]) {
+                    case "B":
+                        version = Long.parseLong(fields[1]);
+                        directory = new HashMap<>();
+                        break;
+                    case "R":
+                        User user = decodeUser(fields, 1);
+                        directory.put(user.getUsername(), user);
+                        break;
+                    case "E":
+                        this.signaling.applyReplicatedDirectory(version, directory);
+                        this.initialized = true;
+                        directory = null;
+                        break;
+                    case "J":
+                        this.signaling.applyReplicatedEvent(MembershipEventType.JOINED, Long.parseLong(fields[1]),
+                                decodeUser(fields, 2));
+                        break;
+                    case "L":
+                        this.signaling.applyReplicatedEvent(MembershipEventType.LEFT, Long.parseLong(fields[1]),
+                                new User(URLDecoder.decode(fields[2], "UTF-8"), "", 0, 0, 0));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Read the replication stream of another partition until it ends, merging its events into the local log.
+     * @param after the sequence number up to which the stream has been read, or -1 to start from its end
+     * @throws IOException if the stream cannot be opened or is broken
+     */
+    private void merge(long after) throws IOException {
+        HttpURLConnection connection = this.connect(after, false);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                    StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                switch (fields[0]) {
+                    case "B":
+                        // the events missed since the last position are lost, the users synchronize again
+                        if (this.position >= 0)
+                            this.signaling.invalidatePartitionEvents();
+                        this.position = Long.parseLong(fields[1]);
+                        break;
+                    case "J":
+                        this.signaling.applyPartitionEvent(MembershipEventType.JOINED, decodeUser(fields, 2));
+                        this.position = Long.parseLong(fields[1]);
+                        break;
+                    case "L":
+                        this.signaling.applyPartitionEvent(MembershipEventType.LEFT,
+                                new User(URLDecoder.decode(fields[2], "UTF-8"), "", 0, 0, 0));
+                        this.position = Long.parseLong(fields[1]);
+                        break;
+                    case "S":
+                        this.position = Long.parseLong(fields[1]);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Open the replication stream.
+     * @param after the sequence number of the last received event, or -1 to receive the whole directory
+     * @param users false to receive the version of the directory without its users
+     * @return the connection, whose response is successful
+     * @throws IOException if the stream cannot be opened
+     */
+    private HttpURLConnection connect(long after, boolean users) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(this.address + "?after=" + after
+                + "&users=" + users).openConnection();
+        connection.setRequestProperty(ReplicationStreamHandler.SECRET_HEADER, this.secret);
+        connection.setReadTimeout(READ_TIMEOUT);
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("The server answered " + connection.getResponseCode());
+        }
+        return connection;
+    }
+
+    /**
+     * Decode the fields of a user, token included.
+     * @param fields the fields of the frame
+     * @param offset the index of the username in the fields
+     * @return the user
+     * @throws IOException never, UTF-8 is always supported
+     */
+    private static User decodeUser(String[] fields, int offset) throws IOException {
+        return new User(URLDecoder.decode(fields[offset], "UTF-8"), URLDecoder.decode(fields[offset + 1], "UTF-8"),
+                Integer.parseInt(fields[offset + 2]), URLDecoder.decode(fields[offset + 3], "UTF-8"));
+    }
+
+}
@@ -0,0 +1,172 @@
+package fr.ensibs.peerExpress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP handler streaming the membership log of the leader signaling server to its
+ * followers. Unlike the event stream of the users, the records carry the registration
+ * tokens, so the request must present the secret shared by the servers in the
+ * {@value #SECRET_HEADER} header. The request is GET ?after=&lt;sequence&gt;&amp;users=&lt;true|false&gt;,
+ * and each line of the response is one of the following frames, whose strings are URL-encoded:
+ * <ul>
+ *     <li>{@code B <version>} the directory is sent again, as it was at least at the version</li>
+ *     <li>{@code R <username> <host> <port> <token>} a user of the directory being sent</li>
+ *     <li>{@code E} the directory has been sent</li>
+ *     <li>{@code J <sequence> <username> <host> <port> <token>} a user has registered</li>
+ *     <li>{@code L <sequence> <username>} a user has deregistered</li>
+ *     <li>{@code S <sequence>} the log has been sent up to the sequence number, also sent as a heartbeat</li>
+ * </ul>
+ * The directory is sent first when the events after the requested sequence number are
+ * no longer in the log, e.g. when a follower starts, without its users if the parameter users is
+ * false. Only the events that happened on this server are sent, so that the other partitions of
+ * a partitioned directory can merge them without sending them back.
+ */
+public class ReplicationStreamHandler implements HttpHandler {
+
+    /**
+     * the header of the request holding the secret shared by the servers
+     */
+    public static final String SECRET_HEADER = "X-Replication-Secret";
+
+    /**
+     * the maximum number of events read from the log at once
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * the time in milliseconds after which a position frame is sent if nothing happened
+     */
+    private static final long HEARTBEAT_PERIOD = 20000;
+
+    /**
+     * the signaling service whose log is streamed
+     */
+    private final PeerExpressSignalingImpl signaling;
+
+    /**
+     * the secret shared by the servers
+     */
+    private final byte[] secret;
+
+    /**
+     * Constructor.
+     * @param signaling the signaling service whose log is streamed
+     * @param secret the secret shared by the servers
+     */
+    public ReplicationStreamHandler(PeerExpressSignalingImpl signaling, String secret) {
+        this.signaling = signaling;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String secret = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+            if (secret == null || !MessageDigest.isEqual(this.secret, secret.getBytes(StandardCharsets.UTF_8))) {
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+
+            Map<String, String> parameters = MembershipStreamHandler.parseQuery(exchange.getRequestURI().getRawQuery());
+            long after;
+            try {
+                after = Long.parseLong(parameters.getOrDefault("after", "-1"));
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            boolean users = !"false".equals(parameters.get("users"));
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+            MembershipLog log = this.signaling.getMembershipLog();
+            while (!this.signaling.isClosed()) {
+                List<MembershipEvent> events = after >= 0 ? log.since(after, BATCH_SIZE) : null;
+                if (events == null) {
+                    after = this.writeDirectory(writer, users);
+                    continue;
+                }
+
+                for (MembershipEvent event : events) {
+                    if (event.isLocal())
+                        writeEvent(writer, event);
+                    after = event.getSequence();
+                }
+                writer.write("S " + after + "\n");
+                writer.flush();
+
+                if (events.size() < BATCH_SIZE) {
+                    try {
+                        log.awaitAfter(after, HEARTBEAT_PERIOD);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Write the whole directory, as it is at least at the returned version. The changes
+     * made while it is written are sent again by the events after this version.
+     * @param writer the writer of the response
+     * @param users false to only write the version of the directory
+     * @return the version of the directory
+     * @throws IOException if the follower is gone
+     */
+    private long writeDirectory(Writer writer, boolean users) throws IOException {
+        long version = this.signaling.getMembershipLog().getLastSequence();
+        writer.write("B " + version + "\n");
+        if (users) {
+            for (User user : this.signaling.getUsers())
+                writer.write("R " + encode(user) + "\n");
+        }
+        writer.write("E\n");
+        return version;
+    }
+
+    /**
+     * Write the frame of a membership event.
+     * @param writer the writer of the response
+     * @param event the membership event, whose type is either joined or left
+     * @throws IOException if the follower is gone
+     */
+    private static void writeEvent(Writer writer, MembershipEvent event) throws IOException {
+        if (event.getType() == MembershipEventType.LEFT)
+            writer.write("L " + event.getSequence() + " " + URLEncoder.encode(event.getUser().getUsername(), "UTF-8") + "\n");
+        else
+            writer.write("J " + event.getSequence() + " " + encode(event.getUser()) + "\n");
+    }
+
+    /**
+     * Encode the fields of a user, token included.
+     * @param user the user
+     * @return the fields of the user separated by spaces
+     * @throws IOException never, UTF-8 is always supported
+     */
+    private static String encode(User user) throws IOException {
+        return URLEncoder.encode(user.getUsername(), "UTF-8") + " " + URLEncoder.encode(user.getHost(), "UTF-8")
+                + " " + user.getPort() + " " + URLEncoder.encode(user.getToken(), "UTF-8");
+    }
+
+}
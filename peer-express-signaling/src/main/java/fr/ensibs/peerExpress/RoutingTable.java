@@ -0,0 +1,46 @@
+package fr.ensibs.peerExpress;
+
+import javax.xml.bind.annotation.XmlElement;
+import java.util.List;
+
+/**
+ * Represents the partitions of the user directory among the signaling servers. A
+ * user belongs to the partition whose index is the hash code of its username
+ * modulo the number of partitions.
+ */
+public class RoutingTable {
+
+    /**
+     * the addresses of the signaling services of the partitions, ordered by index,
+     * empty if the directory is not partitioned
+     */
+    @XmlElement
+    private List<String> partitions;
+
+    /**
+     * Constructor.
+     * @param partitions the addresses of the signaling services of the partitions
+     */
+    public RoutingTable(List<String> partitions) {
+        this.partitions = partitions;
+    }
+
+    /**
+     * Get the addresses of the signaling services of the partitions.
+     * @return the addresses of the partitions ordered by index, empty if the directory is not partitioned
+     */
+    public List<String> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Get the partition of a user.
+     * @param username the username of the user
+     * @param count the number of partitions
+     * @return the index of the partition of the user
+     */
+    public static int partitionOf(String username, int count) {
+        return Math.floorMod(username.hashCode(), count);
+    }
+
+}
@@ -0,0 +1,380 @@
+package fr.ensibs.peerExpress;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of the signaling server, read over JMX and by the plain-text scrape endpoint.
+ * The counters and the latency histograms are recorded by the request threads on striped
+ * adders, so that recording neither allocates nor contends. The gauges are only computed
+ * when the metrics are read.
+ */
+public class SignalingMetrics implements SignalingMetricsMXBean {
+
+    /**
+     * the number of buckets of a histogram, the bucket i holding the values lower than 2^i
+     * and at least 2^(i-1), the last one holding all the greater values
+     */
+    static final int BUCKETS = 32;
+
+    /**
+     * the operations of the service whose latency is recorded
+     */
+    public enum Operation {
+        REGISTER_USER("registerUser"),
+        UNREGISTER_USER("unregisterUser"),
+        REGISTER_USERS("registerUsers"),
+        UNREGISTER_USERS("unregisterUsers"),
+        RENEW_LEASE("renewLease"),
+        GET_REGISTERED_USERS("getRegisteredUsers"),
+        LOOKUP_USER("lookupUser"),
+        SEARCH_USERS("searchUsers"),
+        GET_REGISTERED_USERS_SINCE("getRegisteredUsersSince"),
+        GET_REGISTERED_USERS_PAGE("getRegisteredUsersPage"),
+        SET_ROSTER("setRoster");
+
+        /**
+         * the name of the operation in the service
+         */
+        private final String name;
+
+        /**
+         * Constructor.
+         * @param name the name of the operation in the service
+         */
+        Operation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Get the name of the operation in the service.
+         * @return the name of the operation
+         */
+        public String getName() {
+            return this.name;
+        }
+    }
+
+    /**
+     * the number of users registered by this server
+     */
+    private final LongAdder registrations = new LongAdder();
+
+    /**
+     * the number of users unregistered by this server, including the expired ones
+     */
+    private final LongAdder deregistrations = new LongAdder();
+
+    /**
+     * the number of users unregistered because their lease has expired
+     */
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * the latencies of the operations in microseconds, indexed by operation
+     */
+    private final Histogram[] latencies = new Histogram[Operation.values().length];
+
+    /**
+     * the number of long polling requests waiting
+     */
+    private final LongSupplier waitingPolls;
+
+    /**
+     * the number of requests rejected by the admission control
+     */
+    private final LongSupplier rejections;
+
+    /**
+     * the number of registered users
+     */
+    private final LongSupplier directorySize;
+
+    /**
+     * the log whose cursors are read for their lag
+     */
+    private final MembershipLog membershipLog;
+
+    /**
+     * Constructor.
+     * @param waitingPolls the number of long polling requests waiting
+     * @param rejections the number of requests rejected by the admission control
+     * @param directorySize the number of registered users
+     * @param membershipLog the log whose last sequence number is the version of the directory,
+     *                      and whose cursors are read for their lag
+     */
+    public SignalingMetrics(LongSupplier waitingPolls, LongSupplier rejections, LongSupplier directorySize,
+                            MembershipLog membershipLog) {
+        for (int i = 0; i < this.latencies.length; i++)
+            this.latencies[i] = new Histogram();
+        this.waitingPolls = waitingPolls;
+        this.rejections = rejections;
+        this.directorySize = directorySize;
+        this.membershipLog = membershipLog;
+    }
+
+    /**
+     * Get the index of the bucket of a value in a histogram.
+     * @param value the value, at least 0
+     * @return the index of the bucket, from 0 to {@link #BUCKETS} - 1
+     */
+    static int bucketOf(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * Record users registered by this server.
+     * @param count the number of users
+     */
+    public void recordRegistrations(int count) {
+        this.registrations.add(count);
+    }
+
+    /**
+     * Record users unregistered by this server.
+     * @param count the number of users
+     */
+    public void recordDeregistrations(int count) {
+        this.deregistrations.add(count);
+    }
+
+    /**
+     * Record a user unregistered because its lease has expired.
+     */
+    public void recordExpiration() {
+        this.expirations.increment();
+    }
+
+    /**
+     * Record the latency of a request, whether it succeeded or not.
+     * @param operation the operation of the request
+     * @param start the time in nanoseconds at which the request started, as given by {@link System#nanoTime()}
+     */
+    public void recordLatency(Operation operation, long start) {
+        this.latencies[operation.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    @Override
+    public long getRegistrations() {
+        return this.registrations.sum();
+    }
+
+    @Override
+    public long getDeregistrations() {
+        return this.deregistrations.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return this.expirations.sum();
+    }
+
+    @Override
+    public long getRejections() {
+        return this.rejections.getAsLong();
+    }
+
+    @Override
+    public long getWaitingPolls() {
+        return this.waitingPolls.getAsLong();
+    }
+
+    @Override
+    public long getDirectorySize() {
+        return this.directorySize.getAsLong();
+    }
+
+    @Override
+    public long getDirectoryVersion() {
+        return this.membershipLog.getLastSequence();
+    }
+
+    @Override
+    public long getMaxCursorLag() {
+        return this.membershipLog.countUnreadEvents(new long[BUCKETS]);
+    }
+
+    @Override
+    public long[] getCursorLagHistogram() {
+        long[] histogram = new long[BUCKETS];
+        this.membershipLog.countUnreadEvents(histogram);
+        return histogram;
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Operation operation : Operation.values())
+            counts.put(operation.getName(), this.latencies[operation.ordinal()].count());
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getMeanLatencies() {
+        Map<String, Long> means = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = this.latencies[operation.ordinal()];
+            long count = histogram.count();
+            means.put(operation.getName(), count > 0 ? histogram.sum.sum() / count : 0);
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyPercentiles99() {
+        Map<String, Long> percentiles = new LinkedHashMap<>();
+        for (Operation operation : Operation.values())
+            percentiles.put(operation.getName(), this.latencies[operation.ordinal()].percentile(0.99));
+        return percentiles;
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format, the latencies being in seconds.
+     * @param output the output to which the metrics are appended
+     */
+    public void writeText(StringBuilder output) {
+        writeCounter(output, "peerexpress_registrations_total", "Users registered by this server",
+                this.getRegistrations());
+        writeCounter(output, "peerexpress_deregistrations_total", "Users unregistered by this server",
+                this.getDeregistrations());
+        writeCounter(output, "peerexpress_expirations_total", "Users unregistered because their lease expired",
+                this.getExpirations());
+        writeCounter(output, "peerexpress_rejections_total", "Requests rejected by the admission control",
+                this.getRejections());
+        writeGauge(output, "peerexpress_waiting_polls", "Long polling requests waiting", this.getWaitingPolls());
+        writeGauge(output, "peerexpress_directory_size", "Registered users", this.getDirectorySize());
+        writeGauge(output, "peerexpress_directory_version", "Version of the directory", this.getDirectoryVersion());
+
+        long[] lags = new long[BUCKETS];
+        long maxLag = this.membershipLog.countUnreadEvents(lags);
+        writeGauge(output, "peerexpress_cursor_lag_max", "Highest number of events not read by a user", maxLag);
+        output.append("# HELP peerexpress_cursor_lag Events not read by each user\n");
+        output.append("# TYPE peerexpress_cursor_lag histogram\n");
+        long users = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            users += lags[i];
+            // the bucket i holds the lags lower than 2^i, so at most 2^i - 1
+            output.append("peerexpress_cursor_lag_bucket{le=\"").append((1L << i) - 1).append("\"} ")
+                    .append(users).append('\n');
+        }
+        users += lags[BUCKETS - 1];
+        output.append("peerexpress_cursor_lag_bucket{le=\"+Inf\"} ").append(users).append('\n');
+        output.append("peerexpress_cursor_lag_count ").append(users).append('\n');
+
+        output.append("# HELP peerexpress_request_duration_seconds Latency of the requests per operation\n");
+        output.append("# TYPE peerexpress_request_duration_seconds histogram\n");
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = this.latencies[operation.ordinal()];
+            String labels = "operation=\"" + operation.getName() + "\"";
+            long count = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                count += histogram.buckets[i].sum();
+                output.append("peerexpress_request_duration_seconds_bucket{").append(labels).append(",le=\"")
+                        .append((1L << i) / 1e6).append("\"} ").append(count).append('\n');
+            }
+            count += histogram.buckets[BUCKETS - 1].sum();
+            output.append("peerexpress_request_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                    .append(count).append('\n');
+            output.append("peerexpress_request_duration_seconds_sum{").append(labels).append("} ")
+                    .append(histogram.sum.sum() / 1e6).append('\n');
+            output.append("peerexpress_request_duration_seconds_count{").append(labels).append("} ")
+                    .append(count).append('\n');
+        }
+    }
+
+    /**
+     * Write a counter in the Prometheus text format.
+     * @param output the output to which the counter is appended
+     * @param name the name of the counter
+     * @param help the description of the counter
+     * @param value the value of the counter
+     */
+    private static void writeCounter(StringBuilder output, String name, String help, long value) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(" counter\n");
+        output.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write a gauge in the Prometheus text format.
+     * @param output the output to which the gauge is appended
+     * @param name the name of the gauge
+     * @param help the description of the gauge
+     * @param value the value of the gauge
+     */
+    private static void writeGauge(StringBuilder output, String name, String help, long value) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(" gauge\n");
+        output.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * A histogram of values whose buckets are powers of two, recorded without allocation.
+     */
+    private static class Histogram {
+
+        /**
+         * the number of values per bucket
+         */
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        /**
+         * the sum of the values
+         */
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Constructor.
+         */
+        private Histogram() {
+            for (int i = 0; i < BUCKETS; i++)
+                this.buckets[i] = new LongAdder();
+        }
+
+        /**
+         * Record a value.
+         * @param value the value, at least 0
+         */
+        private void record(long value) {
+            this.buckets[bucketOf(value)].increment();
+            this.sum.add(value);
+        }
+
+        /**
+         * Get the number of recorded values.
+         * @return the number of values
+         */
+        private long count() {
+            long count = 0;
+            for (LongAdder bucket : this.buckets)
+                count += bucket.sum();
+            return count;
+        }
+
+        /**
+         * Get an upper bound of a percentile of the recorded values, i.e. the upper bound of its bucket.
+         * @param quantile the quantile of the percentile, between 0 and 1
+         * @return the upper bound of the percentile, or 0 if no value has been recorded
+         */
+        private long percentile(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = this.buckets[i].sum();
+                count += counts[i];
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (count > 0 && seen >= rank)
+                    return (1L << i) - 1;
+            }
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package fr.ensibs.peerExpress;
+
+import java.util.Map;
+
+/**
+ * The management interface of the metrics of the signaling server, registered on the
+ * platform MBean server. The latencies are in microseconds, per operation of the service.
+ */
+public interface SignalingMetricsMXBean {
+
+    /**
+     * Get the number of users registered by this server since it started.
+     * @return the number of registrations
+     */
+    long getRegistrations();
+
+    /**
+     * Get the number of users unregistered by this server since it started, including the expired ones.
+     * @return the number of deregistrations
+     */
+    long getDeregistrations();
+
+    /**
+     * Get the number of users unregistered because their lease has expired.
+     * @return the number of expirations
+     */
+    long getExpirations();
+
+    /**
+     * Get the number of requests rejected by the admission control, to be retried later.
+     * @return the number of rejections
+     */
+    long getRejections();
+
+    /**
+     * Get the number of long polling requests waiting.
+     * @return the number of waiting requests
+     */
+    long getWaitingPolls();
+
+    /**
+     * Get the number of registered users.
+     * @return the size of the directory
+     */
+    long getDirectorySize();
+
+    /**
+     * Get the version of the directory, i.e. the sequence number of the last membership event.
+     * @return the version of the directory
+     */
+    long getDirectoryVersion();
+
+    /**
+     * Get the highest number of events a registered user has not read yet.
+     * @return the highest lag of the cursors
+     */
+    long getMaxCursorLag();
+
+    /**
+     * Get the number of registered users per number of events not read yet, the index i
+     * counting the users whose lag is lower than 2^i and at least 2^(i-1).
+     * @return the histogram of the lags of the cursors
+     */
+    long[] getCursorLagHistogram();
+
+    /**
+     * Get the number of requests per operation since the server started.
+     * @return the number of requests identified by the name of their operation
+     */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * Get the mean latency of the requests per operation.
+     * @return the mean latencies in microseconds identified by the name of their operation
+     */
+    Map<String, Long> getMeanLatencies();
+
+    /**
+     * Get an upper bound of the 99th percentile of the latency of the requests per operation.
+     * @return the percentiles in microseconds identified by the name of their operation
+     */
+    Map<String, Long> getLatencyPercentiles99();
+
+}
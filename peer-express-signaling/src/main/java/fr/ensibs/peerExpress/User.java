@@ -1,11 +1,11 @@
 package fr.ensibs.peerExpress;
 
 import javax.xml.bind.annotation.XmlElement;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * Represents an user registered in the signaling server.
+ * Represents an user registered in the signaling server. Since the server holds one
+ * instance per registered user, the host is shared with the other users of the same
+ * host, and the registration token is held as its two halves rather than as a string.
  */
 public class User {
 
@@ -16,7 +16,7 @@ public class User {
     private String username;
 
     /**
-     * the host of the user
+     * the host of the user, interned to be shared with the other users of the same host
      */
     @XmlElement
     private String host;
@@ -28,82 +28,108 @@ public class User {
     private int port;
 
     /**
-     * the registration token of the user that must be kept secret
+     * the most significant bits of the registration token of the user that must be kept secret
      */
-    private String token;
+    private long tokenHigh;
 
     /**
-     * the blocking queue containing newly registered users
+     * the least significant bits of the registration token, both halves being 0 if the user has no token
      */
-    private BlockingQueue<User> newUserRegistrations = new LinkedBlockingQueue<>();
+    private long tokenLow;
 
     /**
-     * the blocking queue containing deregistered users
+     * Constructor.
+     * @param username the username of the user
+     * @param host the host of the user
+     * @param port the port of the user
+     * @param tokenHigh the most significant bits of the registration token of the user
+     * @param tokenLow the least significant bits of the registration token of the user
      */
-    private BlockingQueue<User> newUserDeregistrations = new LinkedBlockingQueue<>();
+    public User(String username, String host, int port, long tokenHigh, long tokenLow) {
+        this.username = username;
+        this.host = host != null ? host.intern() : null;
+        this.port = port;
+        this.tokenHigh = tokenHigh;
+        this.tokenLow = tokenLow;
+    }
 
     /**
      * Constructor.
      * @param username the username of the user
      * @param host the host of the user
      * @param port the port of the user
-     * @param token the registration token of the user
+     * @param token the registration token of the user, or null if the user has no token
+     * @throws IllegalArgumentException if the token is malformed
      */
     public User(String username, String host, int port, String token) {
-        this.username = username;
-        this.host = host;
-        this.port = port;
-        this.token = token;
+        this(username, host, port, token != null ? RegistrationTokens.parseHalf(token, true) : 0,
+                token != null ? RegistrationTokens.parseHalf(token, false) : 0);
     }
 
     /**
-     * Add a newly registered user to the queue.
-     * @param user the user to add
+     * Get the username of the user.
+     * @return the username of the user
      */
-    public void addNewUserRegistration(User user) {
-        this.newUserRegistrations.add(user);
+    public String getUsername() {
+        return username;
     }
 
     /**
-     * Add a deregistered user to the queue.
-     * @param user the user to add
+     * Get the host of the user.
+     * @return the host of the user
      */
-    public void addNewUserDeregistration(User user) {
-        this.newUserDeregistrations.add(user);
+    public String getHost() {
+        return host;
     }
 
     /**
-     * Retrieve and remove the first newly registered user from the blocking queue,
-     * waiting if necessary until one becomes available.
-     * @return the first newly registered user
+     * Get the opened port of the user.
+     * @return the port of the user
      */
-    public User takeNewUserRegistration() {
-        try {
-            return this.newUserRegistrations.take();
-        } catch (InterruptedException e) {
-            return null;
-        }
+    public int getPort() {
+        return port;
     }
 
     /**
-     * Retrieve and remove the first deregistered user from the blocking queue,
-     * waiting if necessary until one becomes available.
-     * @return the first newly registered user
+     * Get the registration token of the user, built on each call.
+     * @return the registration token of the user, or null if the user has no token
      */
-    public User takeNewUserDeregistration() {
-        try {
-            return this.newUserDeregistrations.take();
-        } catch (InterruptedException e) {
-            return null;
-        }
+    public String getToken() {
+        return tokenHigh != 0 || tokenLow != 0 ? RegistrationTokens.format(tokenHigh, tokenLow) : null;
     }
 
     /**
-     * Get the registration token of the user.
-     * @return the registration token of the user
+     * Check the registration token of the user, without allocation and in constant time.
+     * @param token the token to check, possibly null
+     * @return true if and only if the token is the registration token of the user
      */
-    public String getToken() {
-        return token;
+    public boolean hasToken(String token) {
+        return (tokenHigh != 0 || tokenLow != 0) && RegistrationTokens.matches(token, tokenHigh, tokenLow);
+    }
+
+    /**
+     * Tell if two users have the same registration token.
+     * @param other the other user
+     * @return true if and only if both users have the same token, or none
+     */
+    public boolean hasSameToken(User other) {
+        return tokenHigh == other.tokenHigh && tokenLow == other.tokenLow;
+    }
+
+    /**
+     * Get the most significant bits of the registration token, to store it without formatting it.
+     * @return the most significant bits of the token, 0 with the other half if the user has no token
+     */
+    long getTokenHigh() {
+        return tokenHigh;
+    }
+
+    /**
+     * Get the least significant bits of the registration token, to store it without formatting it.
+     * @return the least significant bits of the token, 0 with the other half if the user has no token
+     */
+    long getTokenLow() {
+        return tokenLow;
     }
 
 }
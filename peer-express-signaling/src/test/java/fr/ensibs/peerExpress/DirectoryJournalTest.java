@@ -0,0 +1,194 @@
+package fr.ensibs.peerExpress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the recovery of the directory from the journal, after a crash or a failed snapshot.
+ */
+public class DirectoryJournalTest {
+
+    /**
+     * the number of records after which the journal takes a snapshot
+     */
+    private static final int SNAPSHOT_INTERVAL = 100000;
+
+    /**
+     * the data directory of the journal
+     */
+    private File directory;
+
+    /**
+     * the users of the directory written by the journal
+     */
+    private final HeapDirectoryStore users = new HeapDirectoryStore();
+
+    /**
+     * the version of the directory written by the journal
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Create the data directory.
+     * @throws IOException if the directory cannot be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    /**
+     * Delete the data directory.
+     * @throws IOException if the directory cannot be deleted
+     */
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(this.directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * A record torn by a crash at the end of the journal is discarded, the records before it being
+     * recovered, and the records appended after the recovery follow the last valid record.
+     */
+    @Test
+    public void tornRecordIsDiscardedOnRecovery() throws Exception {
+        DirectoryJournal journal = this.openJournal();
+        this.register(journal, "alice");
+        this.register(journal, "bob");
+        journal.sync();
+        journal.close();
+
+        File file = new File(this.directory, "journal");
+        try (RandomAccessFile torn = new RandomAccessFile(file, "rw")) {
+            torn.setLength(torn.length() - 3);
+        }
+
+        HeapDirectoryStore recovered = new HeapDirectoryStore();
+        journal = new DirectoryJournal(this.directory);
+        assertEquals(1, journal.recover(recovered));
+        assertNotNull(recovered.get("alice"));
+        assertNull(recovered.get("bob"));
+
+        this.version.set(1);
+        this.users.remove("bob");
+        journal.open(this.version::get, this.users::values);
+        this.register(journal, "carol");
+        journal.sync();
+        journal.close();
+
+        recovered = new HeapDirectoryStore();
+        assertEquals(2, new DirectoryJournal(this.directory).recover(recovered));
+        assertNotNull(recovered.get("alice"));
+        assertNotNull(recovered.get("carol"));
+        assertEquals(2, recovered.values().size());
+    }
+
+    /**
+     * A record whose checksum does not match its content is discarded on recovery.
+     */
+    @Test
+    public void corruptedRecordIsDiscardedOnRecovery() throws Exception {
+        DirectoryJournal journal = this.openJournal();
+        this.register(journal, "alice");
+        this.register(journal, "bob");
+        journal.sync();
+        journal.close();
+
+        File file = new File(this.directory, "journal");
+        try (RandomAccessFile corrupted = new RandomAccessFile(file, "rw")) {
+            // the last byte of the content of the last record, just before its checksum
+            long position = corrupted.length() - 5;
+            corrupted.seek(position);
+            int value = corrupted.read();
+            corrupted.seek(position);
+            corrupted.write(value ^ 0xFF);
+        }
+
+        HeapDirectoryStore recovered = new HeapDirectoryStore();
+        assertEquals(1, new DirectoryJournal(this.directory).recover(recovered));
+        assertNotNull(recovered.get("alice"));
+        assertNull(recovered.get("bob"));
+    }
+
+    /**
+     * The records appended after the journal is closed are never written, and waiting for them fails.
+     */
+    @Test
+    public void syncFailsOnceTheJournalIsClosed() throws Exception {
+        DirectoryJournal journal = this.openJournal();
+        journal.close();
+        this.register(journal, "alice");
+        try {
+            journal.sync();
+            fail("The sync of a closed journal has returned");
+        } catch (IOException e) {
+            assertEquals("The directory journal is closed", e.getMessage());
+        }
+    }
+
+    /**
+     * When a snapshot fails, the journal is not restarted at the next snapshot, so that the records
+     * written since the last successful snapshot are all recovered.
+     */
+    @Test
+    public void failedSnapshotKeepsTheJournal() throws Exception {
+        DirectoryJournal journal = this.openJournal();
+        // the temporary file of the snapshot cannot be created
+        assertTrue(new File(this.directory, "snapshot.tmp").mkdir());
+
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < SNAPSHOT_INTERVAL; j++)
+                this.register(journal, "user-" + i + "-" + j);
+            journal.sync();
+            // let the snapshot fail before the next records
+            Thread.sleep(500);
+        }
+        journal.close();
+
+        HeapDirectoryStore recovered = new HeapDirectoryStore();
+        assertEquals(2 * SNAPSHOT_INTERVAL, new DirectoryJournal(this.directory).recover(recovered));
+        assertEquals(2 * SNAPSHOT_INTERVAL, recovered.values().size());
+    }
+
+    /**
+     * Recover the empty directory and open the journal.
+     * @return the open journal
+     * @throws IOException if the journal cannot be opened
+     */
+    private DirectoryJournal openJournal() throws IOException {
+        DirectoryJournal journal = new DirectoryJournal(this.directory);
+        assertEquals(0, journal.recover(new HeapDirectoryStore()));
+        journal.open(this.version::get, this.users::values);
+        return journal;
+    }
+
+    /**
+     * Register a user in the directory and append its registration to the journal.
+     * @param journal the journal
+     * @param username the username of the user
+     */
+    private void register(DirectoryJournal journal, String username) {
+        User user = RegistrationTokens.issue(username, "host", 1000);
+        this.users.put(user);
+        journal.appendRegistration(this.version.incrementAndGet(), user);
+    }
+
+}
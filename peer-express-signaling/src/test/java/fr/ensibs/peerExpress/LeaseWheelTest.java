@@ -0,0 +1,123 @@
+package fr.ensibs.peerExpress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the expiration of the leases against their renewals and cancellations.
+ */
+public class LeaseWheelTest {
+
+    /**
+     * the duration of a lease in milliseconds
+     */
+    private static final long LEASE_DURATION = 200;
+
+    /**
+     * the duration of a tick of the wheel in milliseconds
+     */
+    private static final long TICK_DURATION = 10;
+
+    /**
+     * the registered users, the registration token of each user by username
+     */
+    private final Map<String, String> registered = new ConcurrentHashMap<>();
+
+    /**
+     * the expired leases, as the username and the token of each lease
+     */
+    private final BlockingQueue<String> expired = new LinkedBlockingQueue<>();
+
+    /**
+     * the wheel under test, unregistering the users that still have the token of their expired lease
+     */
+    private final LeaseWheel leases = new LeaseWheel(LEASE_DURATION, TICK_DURATION, (username, token) -> {
+        this.registered.remove(username, token);
+        this.expired.add(username + ":" + token);
+    });
+
+    /**
+     * Stop the wheel.
+     */
+    @After
+    public void tearDown() {
+        this.leases.close();
+    }
+
+    /**
+     * A lease left from a previous registration of a username expires with its own token, and does not
+     * unregister the user who registered again before its new lease was granted.
+     */
+    @Test
+    public void staleLeaseDoesNotExpireANewRegistration() throws Exception {
+        this.registered.put("alice", "old");
+        this.leases.renew("alice", "old");
+        // the user registers again, the new lease not being granted yet
+        this.registered.put("alice", "new");
+
+        assertEquals("alice:old", this.expired.poll(10 * LEASE_DURATION, TimeUnit.MILLISECONDS));
+        assertEquals("new", this.registered.get("alice"));
+
+        this.leases.renew("alice", "new");
+        assertEquals("alice:new", this.expired.poll(10 * LEASE_DURATION, TimeUnit.MILLISECONDS));
+        assertNull(this.registered.get("alice"));
+    }
+
+    /**
+     * A deregistration cancels the lease it was granted for, but not the lease granted meanwhile
+     * to another registration of the same username.
+     */
+    @Test
+    public void cancellationOnlyRemovesTheLeaseOfItsToken() throws Exception {
+        this.leases.renew("alice", "first");
+        this.leases.cancel("alice", "first");
+        assertEquals(0, this.leases.size());
+
+        this.leases.renew("bob", "second");
+        this.leases.cancel("bob", "first");
+        assertEquals(1, this.leases.size());
+        assertEquals("bob:second", this.expired.poll(10 * LEASE_DURATION, TimeUnit.MILLISECONDS));
+        assertNull(this.expired.poll(2 * LEASE_DURATION, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Renew the leases of half of the users while the wheel expires the others: the renewed users are
+     * never expired, the others all are, and a renewal fails once its user has expired.
+     */
+    @Test
+    public void renewalsRacingTheExpirationsKeepTheRenewedUsers() throws Exception {
+        int users = 1000;
+        for (int i = 0; i < users; i++) {
+            this.registered.put("user-" + i, "token-" + i);
+            this.leases.renew("user-" + i, "token-" + i);
+        }
+
+        long end = System.currentTimeMillis() + 3 * LEASE_DURATION;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < users; i += 2) {
+                String username = "user-" + i;
+                String token = "token-" + i;
+                assertTrue(this.leases.renew(username, token, name -> token.equals(this.registered.get(name))));
+            }
+            Thread.sleep(TICK_DURATION);
+        }
+
+        for (int i = 0; i < users; i++)
+            assertEquals(i % 2 == 0, this.registered.containsKey("user-" + i));
+        assertEquals(users / 2, this.expired.size());
+        String token = "token-1";
+        assertFalse(this.leases.renew("user-1", token, name -> token.equals(this.registered.get(name))));
+    }
+
+}
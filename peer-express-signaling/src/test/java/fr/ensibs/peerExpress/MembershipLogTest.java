@@ -0,0 +1,186 @@
+package fr.ensibs.peerExpress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the readers of the membership log that miss events, and must synchronize their directory again.
+ */
+public class MembershipLogTest {
+
+    /**
+     * the time in milliseconds given to a reader to start waiting
+     */
+    private static final long PARKING_DELAY = 200;
+
+    /**
+     * the log under test
+     */
+    private final MembershipLog log = new MembershipLog(0);
+
+    /**
+     * the threads of the waiting readers
+     */
+    private final ExecutorService readers = Executors.newCachedThreadPool();
+
+    /**
+     * Stop the readers.
+     */
+    @After
+    public void tearDown() {
+        this.log.close();
+        this.readers.shutdownNow();
+    }
+
+    /**
+     * A reader whose position is before a gap entry is told that it missed events, instead of
+     * receiving the events that follow the gap.
+     */
+    @Test
+    public void readerBeforeAGapMissesEvents() throws Exception {
+        this.log.openCursor("alice");
+        long after = this.log.append(MembershipEventType.JOINED, this.user("bob"));
+        this.log.appendGap();
+        this.log.append(MembershipEventType.JOINED, this.user("carol"));
+
+        assertSame(MembershipLog.MISSED_EVENTS, this.log.take("alice", after, 10, 0));
+        assertTrue(this.log.hasMissedEvents("alice", after));
+        assertFalse(this.log.hasMissedEvents("alice", this.log.getLastSequence()));
+    }
+
+    /**
+     * A reader waiting for events when a gap entry is appended is woken up and told that it missed events,
+     * and keeps being told so until it synchronizes its directory again.
+     */
+    @Test
+    public void waitingReaderMissesEventsWhenAGapIsAppended() throws Exception {
+        this.log.openCursor("alice");
+        long after = this.log.getLastSequence();
+        Future<MembershipBatch> batch = this.readers.submit(() -> this.log.take("alice", after, 10, 10000));
+        Thread.sleep(PARKING_DELAY);
+        this.log.appendGap();
+
+        assertSame(MembershipLog.MISSED_EVENTS, batch.get(5, TimeUnit.SECONDS));
+        assertTrue(this.log.hasMissedEvents("alice", after));
+        assertSame(MembershipLog.MISSED_EVENTS, this.log.take("alice", after, 10, 0));
+    }
+
+    /**
+     * A reader of a roster waiting for events when a gap entry is appended is woken up and told that
+     * it missed events, even though the gap does not concern a user of its roster.
+     */
+    @Test
+    public void waitingRosterReaderMissesEventsWhenAGapIsAppended() throws Exception {
+        this.log.openCursor("alice");
+        long after = this.log.setRoster("alice", Collections.singleton("bob"));
+        Future<MembershipBatch> batch = this.readers.submit(() -> this.log.take("alice", after, 10, 10000));
+        Thread.sleep(PARKING_DELAY);
+        this.log.appendGap();
+        this.log.append(MembershipEventType.JOINED, this.user("bob"));
+
+        assertSame(MembershipLog.MISSED_EVENTS, batch.get(5, TimeUnit.SECONDS));
+        assertTrue(this.log.hasMissedEvents("alice", after));
+    }
+
+    /**
+     * A reader whose position is after the last gap entry receives the events as usual.
+     */
+    @Test
+    public void readerAfterAGapReceivesTheEvents() throws Exception {
+        this.log.openCursor("alice");
+        this.log.appendGap();
+        long after = this.log.getLastSequence();
+        this.log.append(MembershipEventType.JOINED, this.user("bob"));
+
+        MembershipBatch batch = this.log.take("alice", after, 10, 0);
+        assertEquals(1, batch.getEvents().size());
+        assertEquals("bob", batch.getEvents().get(0).getUser().getUsername());
+    }
+
+    /**
+     * A reader waiting for events when the history of the log is dropped is woken up and told that
+     * it missed events, instead of moving past the reset.
+     */
+    @Test
+    public void waitingReaderMissesEventsOnReset() throws Exception {
+        this.log.openCursor("alice");
+        long after = this.log.append(MembershipEventType.JOINED, this.user("bob"));
+        Future<MembershipBatch> batch = this.readers.submit(() -> this.log.take("alice", after, 10, 10000));
+        Thread.sleep(PARKING_DELAY);
+        this.log.reset(after + 10);
+
+        assertSame(MembershipLog.MISSED_EVENTS, batch.get(5, TimeUnit.SECONDS));
+        assertTrue(this.log.hasMissedEvents("alice", after));
+    }
+
+    /**
+     * A reader whose position comes from a history dropped by a reset to an older sequence number
+     * is told that it missed events.
+     */
+    @Test
+    public void readerAfterAResetToAnOlderSequenceMissesEvents() throws Exception {
+        this.log.openCursor("alice");
+        this.log.append(MembershipEventType.JOINED, this.user("bob"));
+        long after = this.log.append(MembershipEventType.JOINED, this.user("carol"));
+        this.log.take("alice", after, 10, 0);
+        this.log.reset(after - 1);
+
+        assertSame(MembershipLog.MISSED_EVENTS, this.log.take("alice", after, 10, 0));
+    }
+
+    /**
+     * A reader of a roster waiting for events when the history of the log is dropped is woken up
+     * and told that it missed events.
+     */
+    @Test
+    public void waitingRosterReaderMissesEventsOnReset() throws Exception {
+        this.log.openCursor("alice");
+        long after = this.log.setRoster("alice", Collections.singleton("bob"));
+        Future<MembershipBatch> batch = this.readers.submit(() -> this.log.take("alice", after, 10, 10000));
+        Thread.sleep(PARKING_DELAY);
+        this.log.reset(after + 10);
+
+        assertSame(MembershipLog.MISSED_EVENTS, batch.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * The events of a roster received before a reset are dropped with the history of the log, so that
+     * the reader synchronized from the reset only receives the new events of its roster.
+     */
+    @Test
+    public void rosterEventsOfTheDroppedHistoryAreNotDelivered() throws Exception {
+        this.log.openCursor("alice");
+        long after = this.log.setRoster("alice", Collections.singleton("bob"));
+        this.log.append(MembershipEventType.JOINED, this.user("bob"));
+        this.log.reset(after);
+        assertTrue(this.log.take("alice", after, 10, 0).getEvents().isEmpty());
+
+        Future<MembershipBatch> batch = this.readers.submit(() -> this.log.take("alice", after, 10, 10000));
+        Thread.sleep(PARKING_DELAY);
+        this.log.append(MembershipEventType.LEFT, this.user("bob"));
+        MembershipBatch events = batch.get(5, TimeUnit.SECONDS);
+        assertEquals(1, events.getEvents().size());
+        assertEquals(MembershipEventType.LEFT, events.getEvents().get(0).getType());
+    }
+
+    /**
+     * Create a registered user.
+     * @param username the username of the user
+     * @return the user
+     */
+    private User user(String username) {
+        return RegistrationTokens.issue(username, "host", 1000);
+    }
+
+}
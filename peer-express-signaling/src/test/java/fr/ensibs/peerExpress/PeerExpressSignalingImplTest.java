@@ -0,0 +1,270 @@
+package fr.ensibs.peerExpress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Stress tests of the signaling service from many threads.
+ */
+public class PeerExpressSignalingImplTest {
+
+    /**
+     * the number of threads sending the requests at the same time
+     */
+    private static final int THREADS = 16;
+
+    /**
+     * the number of users registered by each thread
+     */
+    private static final int USERS_PER_THREAD = 500;
+
+    /**
+     * the number of long polling requests parked at the same time, when the requests run on virtual threads
+     */
+    private static final int VIRTUAL_PARKED_POLLS = 10000;
+
+    /**
+     * the number of long polling requests parked at the same time, when the requests run on platform threads
+     */
+    private static final int PLATFORM_PARKED_POLLS = 1000;
+
+    /**
+     * the signaling service, keeping the directory in memory
+     */
+    private PeerExpressSignalingImpl signaling;
+
+    /**
+     * the threads sending the requests
+     */
+    private ExecutorService threads;
+
+    /**
+     * Create the signaling service and the threads.
+     * @throws IOException never, the directory is not persisted
+     */
+    @Before
+    public void setUp() throws IOException {
+        this.signaling = new PeerExpressSignalingImpl(THREADS, new AdmissionControl(Integer.MAX_VALUE, 1000),
+                new HeapDirectoryStore(), null, null, Collections.<String>emptyList(), 0);
+        this.threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    /**
+     * Stop the threads and the signaling service.
+     */
+    @After
+    public void tearDown() {
+        this.threads.shutdownNow();
+        this.signaling.close();
+    }
+
+    /**
+     * Register distinct users from many threads and unregister half of them: no change is lost,
+     * and every change has its own event in the membership log.
+     */
+    @Test
+    public void concurrentRegistrationsAndDeregistrationsAreNotLost() throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            tasks.add(() -> {
+                for (int i = 0; i < USERS_PER_THREAD; i++) {
+                    String username = "user-" + thread + "-" + i;
+                    String token = this.signaling.registerUser(username, "host", 1000 + i);
+                    if (i % 2 == 0)
+                        this.signaling.unregisterUser(username, token);
+                }
+                return null;
+            });
+        }
+        for (Future<Void> future : this.threads.invokeAll(tasks))
+            future.get();
+
+        Set<String> registered = new HashSet<>();
+        for (User user : this.signaling.getRegisteredUsers())
+            registered.add(user.getUsername());
+        assertEquals(THREADS * USERS_PER_THREAD / 2, registered.size());
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < USERS_PER_THREAD; i++)
+                assertEquals(i % 2 == 1, registered.contains("user-" + t + "-" + i));
+        }
+        assertEquals(THREADS * USERS_PER_THREAD * 3 / 2, this.signaling.getMembershipLog().getLastSequence());
+    }
+
+    /**
+     * Register the same usernames from many threads at once: each username is taken by a single
+     * thread, the others being rejected, and only the token given to this thread is accepted.
+     */
+    @Test
+    public void concurrentRegistrationsOfTheSameUsernameHaveASingleWinner() throws Exception {
+        ConcurrentHashMap<String, String> tokens = new ConcurrentHashMap<>();
+        AtomicInteger conflicts = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            tasks.add(() -> {
+                start.await();
+                for (int i = 0; i < USERS_PER_THREAD; i++) {
+                    String username = "user-" + i;
+                    try {
+                        String token = this.signaling.registerUser(username, "host-" + thread, 1000);
+                        assertNull(tokens.putIfAbsent(username, token));
+                    } catch (PeerExpressSignalingHTTP e) {
+                        assertEquals(409, e.getHttpCode());
+                        conflicts.incrementAndGet();
+                    }
+                }
+                return null;
+            });
+        }
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks)
+            futures.add(this.threads.submit(task));
+        start.countDown();
+        for (Future<Void> future : futures)
+            future.get();
+
+        assertEquals(USERS_PER_THREAD, tokens.size());
+        assertEquals((THREADS - 1) * USERS_PER_THREAD, conflicts.get());
+        for (String username : tokens.keySet()) {
+            // renewing with the winning token succeeds, which checks the token atomically with the directory
+            assertEquals(60000, this.signaling.renewLease(username, tokens.get(username)));
+        }
+        assertEquals(USERS_PER_THREAD, this.signaling.getRegisteredUsers().size());
+    }
+
+    /**
+     * Read the directory from many threads at once: the readers share the snapshot of the directory
+     * until it changes, then share the next snapshot, which holds the change.
+     */
+    @Test
+    public void concurrentReadersShareTheDirectorySnapshotUntilItChanges() throws Exception {
+        for (int i = 0; i < USERS_PER_THREAD; i++)
+            this.signaling.registerUser("user-" + i, "host", 1000 + i);
+        List<User> first = this.readConcurrently();
+        assertEquals(USERS_PER_THREAD, first.size());
+        assertSame(first, this.signaling.getRegisteredUsers());
+
+        this.signaling.registerUser("newcomer", "host", 999);
+        List<User> second = this.readConcurrently();
+        assertNotSame(first, second);
+        assertEquals(USERS_PER_THREAD + 1, second.size());
+        assertEquals(USERS_PER_THREAD, first.size());
+    }
+
+    /**
+     * Read the directory from all the threads at once, and check that they all got the same snapshot.
+     * @return the snapshot read by the threads
+     */
+    private List<User> readConcurrently() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<User>>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(this.threads.submit(() -> {
+                start.await();
+                return this.signaling.getRegisteredUsers();
+            }));
+        }
+        start.countDown();
+        List<User> snapshot = futures.get(0).get();
+        for (Future<List<User>> future : futures)
+            assertSame(snapshot, future.get());
+        return snapshot;
+    }
+
+    /**
+     * Park many long polling requests on the executor of the published service, up to the bound of the
+     * waiting requests: the next request is rejected, and a single registration answers all of them.
+     * The requests run on virtual threads when the JVM supports them, and fewer are parked otherwise
+     * since each one then holds an OS thread.
+     */
+    @Test
+    public void parkedPollsAreBoundedAndAllAnsweredByAChange() throws Exception {
+        ExecutorService executor = PeerExpressSignalingPublisher.newRequestExecutor();
+        int polls = executor.getClass().getName().contains("ThreadPoolExecutor") ? PLATFORM_PARKED_POLLS
+                : VIRTUAL_PARKED_POLLS;
+        PeerExpressSignalingImpl signaling = new PeerExpressSignalingImpl(polls,
+                new AdmissionControl(Integer.MAX_VALUE, 1000), new HeapDirectoryStore(), null, null,
+                Collections.<String>emptyList(), 0);
+        try {
+            List<String> tokens = new ArrayList<>();
+            for (int i = 0; i < polls + 1; i++)
+                tokens.add(signaling.registerUser("user-" + i, "host", 1000));
+            long after = signaling.getMembershipLog().getLastSequence();
+
+            List<Future<MembershipBatch>> futures = new ArrayList<>();
+            for (int i = 0; i < polls; i++) {
+                String username = "user-" + i;
+                String token = tokens.get(i);
+                futures.add(executor.submit(() -> signaling.takeMembershipEvents(username, token, after, 10, 60000)));
+            }
+            long deadline = System.currentTimeMillis() + 60000;
+            while (signaling.getMetrics().getWaitingPolls() < polls && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(polls, signaling.getMetrics().getWaitingPolls());
+
+            try {
+                signaling.takeMembershipEvents("user-" + polls, tokens.get(polls), after, 10, 60000);
+                fail("The poll beyond the bound has been parked");
+            } catch (PeerExpressSignalingHTTP e) {
+                assertEquals(503, e.getHttpCode());
+            }
+
+            signaling.registerUser("newcomer", "host", 1000);
+            for (Future<MembershipBatch> future : futures) {
+                List<MembershipEvent> events = future.get(60, TimeUnit.SECONDS).getEvents();
+                assertEquals(1, events.size());
+                assertEquals("newcomer", events.get(0).getUser().getUsername());
+            }
+            assertEquals(0, signaling.getMetrics().getWaitingPolls());
+        } finally {
+            executor.shutdownNow();
+            signaling.close();
+        }
+    }
+
+    /**
+     * A long polling request waiting when events are missed, e.g. from another partition, is answered
+     * with a 410 error, so that the user synchronizes its directory again.
+     */
+    @Test
+    public void waitingPollIsAnsweredWithA410WhenEventsAreMissed() throws Exception {
+        String token = this.signaling.registerUser("alice", "host", 1000);
+        long after = this.signaling.getMembershipLog().getLastSequence();
+        Future<MembershipBatch> batch = this.threads.submit(() ->
+                this.signaling.takeMembershipEvents("alice", token, after, 10, 10000));
+        Thread.sleep(200);
+        this.signaling.getMembershipLog().appendGap();
+        try {
+            batch.get(5, TimeUnit.SECONDS);
+            fail("The waiting poll has moved past the missed events");
+        } catch (ExecutionException e) {
+            assertEquals(410, ((PeerExpressSignalingHTTP) e.getCause()).getHttpCode());
+        }
+    }
+
+}